@@ -3,6 +3,7 @@ package io.github.fvasco.pinpoi.dao
 import android.content.Context
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.platform.app.InstrumentationRegistry
+import io.github.fvasco.pinpoi.importer.FileFormatFilter
 import io.github.fvasco.pinpoi.model.PlacemarkCollection
 import org.junit.After
 import org.junit.Assert.assertEquals
@@ -103,6 +104,38 @@ class PlacemarkCollectionDaoTest {
         assertNull(dao.findPlacemarkCollectionById(1))
     }
 
+    @Test
+    fun testUpdateHttpValidators() {
+        val pc = PlacemarkCollection()
+        pc.name = "test"
+        pc.source = "source"
+        pc.fileFormatFilter = FileFormatFilter.CSV_LAT_LON
+        dao.insert(pc)
+        pc.httpEtag = "\"v1\""
+        pc.httpLastModified = "Sun, 18 Oct 2026 10:00:00 GMT"
+        dao.update(pc)
+
+        // same source
+        pc.description = "description"
+        dao.update(pc)
+        assertEquals("\"v1\"", dao.findPlacemarkCollectionById(pc.id)?.httpEtag)
+
+        // source parsed in a different way
+        pc.fileFormatFilter = FileFormatFilter.CSV_LON_LAT
+        dao.update(pc)
+        assertEquals("", pc.httpEtag)
+        val dbpc = dao.findPlacemarkCollectionById(pc.id) ?: error("not found")
+        assertEquals("", dbpc.httpEtag)
+        assertEquals("", dbpc.httpLastModified)
+
+        // different source
+        pc.httpEtag = "\"v2\""
+        dao.update(pc)
+        pc.source = "source2"
+        dao.update(pc)
+        assertEquals("", dao.findPlacemarkCollectionById(pc.id)?.httpEtag)
+    }
+
     @Test
     fun testFindPlacemarkCollectionByName() {
         val pc = PlacemarkCollection()
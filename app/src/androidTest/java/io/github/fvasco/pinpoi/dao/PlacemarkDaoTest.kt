@@ -4,12 +4,15 @@ import android.content.Context
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.platform.app.InstrumentationRegistry
 import io.github.fvasco.pinpoi.model.Placemark
+import io.github.fvasco.pinpoi.model.PlacemarkCollection
 import io.github.fvasco.pinpoi.util.Coordinates
 import io.github.fvasco.pinpoi.util.distanceTo
 import org.junit.After
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
 import org.junit.Assert.assertNotNull
 import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
 import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Test
@@ -90,7 +93,10 @@ class PlacemarkDaoTest {
         assertEquals(2, set.size)
         val iterator = set.iterator()
         assertEquals("Pompei", iterator.next().name)
-        assertEquals("Ercolano", iterator.next().name)
+        val ercolano = iterator.next()
+        assertEquals("Ercolano", ercolano.name)
+        assertEquals(POMPEI_LOCATION.distanceTo(ERCOLANO_LOCATION), ercolano.distance, 1f)
+        assertTrue(ercolano.bearing < 0)
 
         // filter for Pompei
         set = dao.findAllPlacemarkNear(POMPEI_LOCATION, 14000.0, listOf(1L, 999L), "pom", false)
@@ -173,6 +179,25 @@ class PlacemarkDaoTest {
         }
     }
 
+    @Test
+    fun testFindAllPlacemarkNearDuplicatedCoordinates() {
+        // same placemarks in two collections
+        val placemarks = (0 until 300).flatMap { i ->
+            val coordinates = Coordinates(POMPEI_LOCATION.latitude + i / 1000f, POMPEI_LOCATION.longitude)
+            listOf(
+                Placemark(name = "Placemark $i", coordinates = coordinates, collectionId = 1),
+                Placemark(name = "Placemark $i", coordinates = coordinates, collectionId = 2)
+            )
+        }
+        dao.insert(placemarks)
+
+        val res = dao.findAllPlacemarkNear(POMPEI_LOCATION, 100000.0, setOf(1L, 2L))
+        assertEquals(300, res.size)
+        assertEquals(300, res.map { it.coordinates }.toSet().size)
+        assertEquals("Placemark 0", res.first().name)
+        assertEquals("Placemark 299", res.last().name)
+    }
+
     @Test
     fun testInsert() {
         insertPompeiErcolanoVesuvio()
@@ -194,6 +219,21 @@ class PlacemarkDaoTest {
         assertEquals(1, dbp.collectionId)
     }
 
+    @Test
+    fun testInsertCollection() {
+        val pompei = Placemark(name = "Pompei", coordinates = POMPEI_LOCATION, collectionId = 1)
+        val ercolano =
+            Placemark(name = " Ercolano ", coordinates = ERCOLANO_LOCATION, collectionId = 1)
+        // duplicate is ignored
+        assertEquals(2, dao.insert(listOf(pompei, ercolano, pompei.copy(name = "Pompei 2"))))
+
+        val list = dao.findAllPlacemarkByCollectionId(1)
+        assertEquals(2, list.size)
+        assertEquals("Pompei", list[0].name)
+        assertEquals("Ercolano", list[1].name)
+        assertEquals(ERCOLANO_LOCATION, list[1].coordinates)
+    }
+
     @Test
     fun testDeleteByCollectionId() {
         insertPompeiErcolanoVesuvio()
@@ -209,6 +249,141 @@ class PlacemarkDaoTest {
         assertNotNull(dao.getPlacemark(3))
     }
 
+    @Test
+    fun testFindAllPlacemarkNearAfterDelete() {
+        insertPompeiErcolanoVesuvio()
+        assertEquals(1, dao.findAllPlacemarkNear(VESUVIO_LOCATION, 1.0, setOf(2L)).size)
+
+        dao.deleteByCollectionId(2)
+        assertTrue(dao.findAllPlacemarkNear(VESUVIO_LOCATION, 1.0, setOf(2L)).isEmpty())
+
+        // reinsert in same place
+        val p = Placemark()
+        p.name = "Vesuvio"
+        p.coordinates = VESUVIO_LOCATION
+        p.collectionId = 2
+        dao.insert(p)
+        assertEquals(1, dao.findAllPlacemarkNear(VESUVIO_LOCATION, 1.0, setOf(2L)).size)
+    }
+
+    @Test
+    fun testFindAllPlacemarkNearNameFilterAfterUpdate() {
+        insertPompeiErcolanoVesuvio()
+        assertEquals(1, dao.findAllPlacemarkNear(VESUVIO_LOCATION, 1.0, setOf(2L), "suv").size)
+
+        // rename Vesuvio
+        dao.insert(listOf(Placemark(name = "Somma", coordinates = VESUVIO_LOCATION, collectionId = 3)))
+        dao.createStaging()
+        dao.insertStaging(listOf(Placemark(name = "Monte \"Somma\"", coordinates = VESUVIO_LOCATION, collectionId = 2)))
+        assertEquals(PlacemarkDao.MergeResult(0, 1, 0), dao.mergeStaging(2))
+        assertTrue(dao.findAllPlacemarkNear(VESUVIO_LOCATION, 1.0, setOf(2L), "suv").isEmpty())
+        assertEquals(1, dao.findAllPlacemarkNear(VESUVIO_LOCATION, 1.0, setOf(2L), "\"som").size)
+        assertEquals(1, dao.findAllPlacemarkNear(VESUVIO_LOCATION, 1.0, setOf(3L), "som").size)
+
+        dao.deleteByCollectionId(2)
+        assertTrue(dao.findAllPlacemarkNear(VESUVIO_LOCATION, 1.0, setOf(2L), "som").isEmpty())
+        assertEquals(1, dao.findAllPlacemarkNear(VESUVIO_LOCATION, 1.0, setOf(3L), "som").size)
+    }
+
+    @Test
+    fun testUpdateBounds() {
+        insertPompeiErcolanoVesuvio()
+        val pc = PlacemarkCollection(id = 1)
+        dao.updateBounds(pc)
+        assertTrue(pc.hasBounds)
+        assertEquals(POMPEI_LOCATION.latitude, pc.minLatitude, 0.00001f)
+        assertEquals(ERCOLANO_LOCATION.latitude, pc.maxLatitude, 0.00001f)
+        assertEquals(ERCOLANO_LOCATION.longitude, pc.minLongitude, 0.00001f)
+        assertEquals(POMPEI_LOCATION.longitude, pc.maxLongitude, 0.00001f)
+
+        assertTrue(PlacemarkDao.isCollectionNear(pc, VESUVIO_LOCATION, 1000.0))
+        assertTrue(PlacemarkDao.isCollectionNear(pc, POMPEI_LOCATION, 1.0))
+        assertFalse(PlacemarkDao.isCollectionNear(pc, Coordinates(45f, 14.4f), 100000.0))
+        assertFalse(PlacemarkDao.isCollectionNear(pc, Coordinates(40.8f, 10f), 100000.0))
+
+        // meridian 180
+        pc.minLongitude = 179.5f
+        pc.maxLongitude = 179.9f
+        assertTrue(PlacemarkDao.isCollectionNear(pc, Coordinates(40.8f, -179.9f), 100000.0))
+        assertFalse(PlacemarkDao.isCollectionNear(pc, Coordinates(40.8f, -178f), 100000.0))
+
+        // empty collection
+        pc.id = 999
+        dao.updateBounds(pc)
+        assertFalse(pc.hasBounds)
+        assertTrue(PlacemarkDao.isCollectionNear(pc, POMPEI_LOCATION, 1.0))
+    }
+
+    @Test
+    fun testSharedDatabase() {
+        val database = dao.database!!
+        assertTrue(database.isWriteAheadLoggingEnabled)
+        val otherDao = PlacemarkDao(instrumentationContext)
+        otherDao.use { assertSame(database, it.database) }
+        assertNull(otherDao.database)
+        assertTrue(database.isOpen)
+    }
+
+    @Test
+    fun testFindAllPlacemarkNearCollectionName() {
+        PlacemarkCollectionDao(instrumentationContext).use { placemarkCollectionDao ->
+            val placemarkCollection = PlacemarkCollection(name = "Campania")
+            placemarkCollectionDao.insert(placemarkCollection)
+            dao.insert(
+                listOf(Placemark(name = "Pompei", coordinates = POMPEI_LOCATION, collectionId = placemarkCollection.id))
+            )
+            val placemark = dao.findAllPlacemarkNear(POMPEI_LOCATION, 1.0, setOf(placemarkCollection.id)).single()
+            assertEquals("Campania", placemark.collectionName)
+        }
+    }
+
+    @Test
+    fun testFindAllPlacemarkInBox() {
+        insertPompeiErcolanoVesuvio()
+        dao.insert(listOf(Placemark(name = "Edge", coordinates = Coordinates(41f, 14.5f), collectionId = 1)))
+
+        // adjacent boxes, Edge is on the border
+        val south = dao.findAllPlacemarkInBox(40.0, 41.0, 14.0, 15.0, setOf(1L, 2L), limit = 10)
+        assertEquals(setOf("Pompei", "Ercolano", "Vesuvio"), south.map { it.name }.toSet())
+        val north = dao.findAllPlacemarkInBox(41.0, 42.0, 14.0, 15.0, setOf(1L, 2L), limit = 10)
+        assertEquals(listOf("Edge"), north.map { it.name })
+
+        // filters
+        assertEquals(
+            listOf("Vesuvio"),
+            dao.findAllPlacemarkInBox(40.0, 41.0, 14.0, 15.0, setOf(2L), limit = 10).map { it.name })
+        assertEquals(
+            listOf("Pompei"),
+            dao.findAllPlacemarkInBox(40.0, 41.0, 14.0, 15.0, setOf(1L), "pom", limit = 10).map { it.name })
+        assertEquals(1, dao.findAllPlacemarkInBox(40.0, 41.0, 14.0, 15.0, setOf(1L, 2L), limit = 1).size)
+    }
+
+    @Test
+    fun testFindAllPlacemarkClusterInBox() {
+        insertPompeiErcolanoVesuvio()
+
+        // Ercolano and Vesuvio in the same cell
+        val clusters = dao.findAllPlacemarkClusterInBox(40.0, 41.0, 14.0, 15.0, 4, setOf(1L, 2L))
+            .sortedBy { it.size }
+        assertEquals(listOf(1, 2), clusters.map { it.size })
+        assertEquals("Pompei", clusters[0].placemark?.name)
+        assertNull(clusters[1].placemark)
+        assertEquals(ERCOLANO_LOCATION.latitude, clusters[1].latitudeMin, 0.0001f)
+        assertEquals(VESUVIO_LOCATION.latitude, clusters[1].latitudeMax, 0.0001f)
+        assertEquals(
+            (ERCOLANO_LOCATION.longitude + VESUVIO_LOCATION.longitude) / 2,
+            clusters[1].coordinates.longitude, 0.0001f
+        )
+
+        // excluded placemark
+        val pompeiId = clusters[0].placemark!!.id
+        assertEquals(
+            listOf(2),
+            dao.findAllPlacemarkClusterInBox(
+                40.0, 41.0, 14.0, 15.0, 4, setOf(1L, 2L), excludedIds = setOf(pompeiId)
+            ).map { it.size })
+    }
+
     @Test
     fun testPlacemarkAnnotation() {
         insertPompeiErcolanoVesuvio()
@@ -0,0 +1,75 @@
+package io.github.fvasco.pinpoi.dao
+
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import io.github.fvasco.pinpoi.importer.FileFormatFilter
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * @author Francesco Vasco
+ */
+@RunWith(AndroidJUnit4::class)
+class PlacemarkDatabaseTest {
+
+    private lateinit var context: Context
+    private lateinit var placemarkDao: PlacemarkDao
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getInstrumentation().context
+        // close shared database
+        placemarkDao = PlacemarkDao(context)
+        placemarkDao.lock()
+    }
+
+    @After
+    fun tearDown() {
+        placemarkDao.reset()
+    }
+
+    @Test
+    fun testMigrateLegacyPlacemarkCollection() {
+        context.deleteDatabase("Placemark")
+        context.deleteDatabase(PlacemarkCollectionDatabase.DATABASE_NAME)
+        SQLiteDatabase.openOrCreateDatabase(context.getDatabasePath(PlacemarkCollectionDatabase.DATABASE_NAME), null)
+            .use { db ->
+                // legacy version 2, fileFormatFilter is added as nullable in version 3
+                db.execSQL(
+                    "CREATE TABLE PLACEMARK_COLLECTION (" +
+                            "_ID INTEGER primary key autoincrement," +
+                            "name TEXT NOT NULL," +
+                            "description TEXT NOT NULL," +
+                            "source TEXT NOT NULL," +
+                            "category TEXT NOT NULL," +
+                            "last_update INTEGER NOT NULL," +
+                            "poi_count INTEGER NOT NULL" +
+                            ")"
+                )
+                db.execSQL(
+                    "INSERT INTO PLACEMARK_COLLECTION (name,description,source,category,last_update,poi_count)" +
+                            " VALUES ('legacy','','http://example.com/poi.kml','',1,0)"
+                )
+                db.version = 2
+            }
+
+        PlacemarkDatabase(context).use { placemarkDatabase ->
+            placemarkDatabase.writableDatabase
+                .rawQuery("SELECT name,fileFormatFilter FROM PLACEMARK_COLLECTION", null)
+                .use { cursor ->
+                    assertTrue(cursor.moveToFirst())
+                    assertEquals("legacy", cursor.getString(0))
+                    assertEquals(FileFormatFilter.NONE.name, cursor.getString(1))
+                    assertFalse(cursor.moveToNext())
+                }
+        }
+        assertFalse(context.getDatabasePath(PlacemarkCollectionDatabase.DATABASE_NAME).exists())
+    }
+}
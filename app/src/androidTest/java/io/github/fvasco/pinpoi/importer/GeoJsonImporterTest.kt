@@ -27,4 +27,79 @@ class GeoJsonImporterTest : AbstractImporterTestCase() {
         assertEquals(1.3F, p.coordinates.longitude, 0.1F)
         assertEquals(2.3F, p.coordinates.latitude, 0.1F)
     }
+
+    @Test
+    fun testImportImplFeaturesFirst() {
+        val json = """
+            {"features": [
+              {"type": "Feature", "geometry": {"type": "Point", "coordinates": [1.1, 2.1]}, "properties": {"name": "Place 0"}},
+              {"type": "Feature", "geometry": {"type": "Point", "coordinates": [1.2, 2.2]}, "properties": {"name": "Place 1"}}
+            ],
+            "type": "FeatureCollection", "bbox": [1.1, 2.1, 1.2, 2.2]}
+        """
+        val list = importPlacemark(GeoJsonImporter(), json.byteInputStream())
+        assertEquals(listOf("Place 0", "Place 1"), list.map { it.name })
+    }
+
+    @Test
+    fun testImportImplFeaturesLast() {
+        val json = """
+            {"type": "FeatureCollection", "bbox": [1.1, 2.1, 1.2, 2.2], "name": "Collection",
+            "features": [
+              {"type": "Feature", "geometry": {"type": "Point", "coordinates": [1.1, 2.1]}, "properties": {"name": "Place 0"}},
+              {"type": "Feature", "geometry": {"type": "Point", "coordinates": [1.2, 2.2]}, "properties": {"name": "Place 1"}}
+            ]}
+        """
+        val list = importPlacemark(GeoJsonImporter(), json.byteInputStream())
+        assertEquals(listOf("Place 0", "Place 1"), list.map { it.name })
+    }
+
+    @Test
+    fun testImportImplFeatureRoot() {
+        val json = """
+            {"properties": {"name": "Place 0"}, "geometry": {"type": "Point", "coordinates": [1.1, 2.1]}, "type": "Feature"}
+        """
+        val list = importPlacemark(GeoJsonImporter(), json.byteInputStream())
+        assertEquals(1, list.size)
+        val p = list[0]
+        assertEquals("Place 0", p.name)
+        assertEquals(1.1F, p.coordinates.longitude, 0.1F)
+        assertEquals(2.1F, p.coordinates.latitude, 0.1F)
+    }
+
+    @Test
+    fun testImportImplGeometryRoot() {
+        val json = """
+            {"type": "Point", "coordinates": [1.1, 2.1]}
+        """
+        val list = importPlacemark(GeoJsonImporter(), json.byteInputStream())
+        assertEquals(0, list.size)
+    }
+
+    @Test
+    fun testImportImplMalformedFeature() {
+        val features = """
+            42,
+            "feature",
+            {"type": "Feature", "geometry": "Point", "properties": {"name": "Bad geometry"}},
+            {"type": "Feature", "geometry": {"type": "Point", "coordinates": ["a"]}, "properties": {"name": "Bad coordinates"}},
+            {"type": "Feature", "geometry": {"type": "Point", "coordinates": [1.1]}, "properties": {"name": "Short coordinates"}},
+            {"type": "Feature", "geometry": {"type": "Point", "coordinates": [1.1, 2.1]}, "properties": "Place"},
+            {"type": "Feature", "geometry": {"type": "Point", "coordinates": [1.1, 2.1]}, "properties": {}},
+            {"type": "Feature", "geometry": {"type": "Point", "coordinates": [1.2, 2.2]}, "properties": {"name": "Place 1"}}
+        """
+        // streamed root features
+        var list = importPlacemark(
+            GeoJsonImporter(),
+            """{"type": "FeatureCollection", "features": [$features]}""".byteInputStream()
+        )
+        assertEquals(listOf("Place 1"), list.map { it.name })
+
+        // nested collection features
+        list = importPlacemark(
+            GeoJsonImporter(),
+            """{"type": "FeatureCollection", "features": [{"type": "FeatureCollection", "features": [$features]}]}""".byteInputStream()
+        )
+        assertEquals(listOf("Place 1"), list.map { it.name })
+    }
 }
@@ -5,13 +5,18 @@ import io.github.fvasco.pinpoi.dao.PlacemarkCollectionDao
 import io.github.fvasco.pinpoi.dao.PlacemarkDao
 import io.github.fvasco.pinpoi.model.PlacemarkCollection
 import org.junit.After
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
 import org.junit.Assert.assertTrue
 import org.junit.Assert.fail
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.URL
 
 /**
  * @author Francesco Vasco
@@ -59,6 +64,23 @@ class ImporterFacadeTest : AbstractImporterTestCase() {
         assertEquals(count, placemarkDao.findAllPlacemarkByCollectionId(pc.id).size)
     }
 
+    @Test
+    fun testImportPlacemarksKmlUpdate() {
+        val pc = insertPlacemarkCollection("test2.kml")
+        val importerFacade = ImporterFacade(context)
+        importerFacade.importPlacemarks(pc, context)
+        assertEquals(PlacemarkDao.MergeResult(2, 0, 0), importerFacade.lastMergeResult)
+        val ids = placemarkDao.findAllPlacemarkByCollectionId(pc.id).map { it.id }
+        val lastUpdate = pc.lastUpdate
+
+        // nothing changed
+        val count = importerFacade.importPlacemarks(pc, context)
+        assertEquals(2, count)
+        assertEquals(PlacemarkDao.MergeResult(0, 0, 0), importerFacade.lastMergeResult)
+        assertEquals(lastUpdate, pc.lastUpdate)
+        assertEquals(ids, placemarkDao.findAllPlacemarkByCollectionId(pc.id).map { it.id })
+    }
+
     @Test
     fun testImportPlacemarksWrong() {
         val pc = insertPlacemarkCollection("wrong")
@@ -107,4 +129,71 @@ class ImporterFacadeTest : AbstractImporterTestCase() {
         assertEquals(count, pc.poiCount)
         assertEquals(count, placemarkDao.findAllPlacemarkByCollectionId(pc.id).size)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testOpenInputStreamNotModified() {
+        val body = checkNotNull(javaClass.getResourceAsStream("test2.kml")).use { it.readBytes() }
+        val url = URL("http://localhost/test2.kml")
+        val etag = "\"v1\""
+        val lastModified = "Sun, 18 Oct 2026 10:00:00 GMT"
+
+        // first download
+        var source =
+            ImporterFacade.openInputStream(StandInHttpConnection(url, body, etag, lastModified), "", "")
+        assertEquals(etag, source.httpEtag)
+        assertEquals(lastModified, source.httpLastModified)
+        assertArrayEquals(body, checkNotNull(source.inputStream).use { it.readBytes() })
+
+        // ETag validation
+        source =
+            ImporterFacade.openInputStream(StandInHttpConnection(url, body, etag, lastModified), etag, "")
+        assertNull(source.inputStream)
+
+        // Last-Modified validation
+        source = ImporterFacade.openInputStream(
+            StandInHttpConnection(url, body, etag, lastModified), "", lastModified
+        )
+        assertNull(source.inputStream)
+
+        // resource changed
+        source = ImporterFacade.openInputStream(
+            StandInHttpConnection(url, body, "\"v2\"", lastModified), etag, ""
+        )
+        assertEquals("\"v2\"", source.httpEtag)
+        assertArrayEquals(body, checkNotNull(source.inputStream).use { it.readBytes() })
+    }
+
+    /**
+     * Local stand-in for an HTTP server, it serves a resource and honours conditional requests
+     */
+    private class StandInHttpConnection(
+        url: URL,
+        private val body: ByteArray,
+        private val etag: String,
+        private val lastModified: String
+    ) : HttpURLConnection(url) {
+
+        override fun connect() = Unit
+
+        override fun disconnect() = Unit
+
+        override fun usingProxy() = false
+
+        override fun getResponseCode(): Int =
+            if (getRequestProperty("If-None-Match") == etag
+                || getRequestProperty("If-None-Match") == null
+                && getRequestProperty("If-Modified-Since") == lastModified
+            ) HTTP_NOT_MODIFIED
+            else HTTP_OK
+
+        override fun getHeaderField(name: String?): String? =
+            when (name) {
+                "Content-Type" -> FileFormatFilter.KML.validMimeTypes.first()
+                "ETag" -> etag
+                "Last-Modified" -> lastModified
+                else -> null
+            }
+
+        override fun getInputStream(): InputStream = body.inputStream()
+    }
+}
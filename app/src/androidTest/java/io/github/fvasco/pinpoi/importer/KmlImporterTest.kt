@@ -5,6 +5,7 @@ import org.junit.Assert.assertEquals
 import org.junit.Test
 import org.junit.runner.RunWith
 import java.io.ByteArrayInputStream
+import java.io.File
 
 /**
  * @author Francesco Vasco
@@ -45,4 +46,81 @@ class KmlImporterTest : AbstractImporterTestCase() {
             importPlacemark(KmlImporter(), ByteArrayInputStream(xml.toByteArray(charset("utf-8"))))
         assertEquals(2, list.size)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testImportCoordinates() {
+        val longDescription = "x".repeat(100_000)
+        val xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document>\n" +
+                "<Placemark><name>Polygon</name>" +
+                "<description><![CDATA[$longDescription]]></description>" +
+                "<Polygon><outerBoundaryIs><LinearRing><coordinates>\n" +
+                "  wrong,1.0 2.5 -1.5e1,+3.25,100 4,5\n" +
+                "</coordinates></LinearRing></outerBoundaryIs></Polygon></Placemark>\n" +
+                "<Placemark><name>Invalid</name><Point><coordinates>1.0;2.0</coordinates></Point></Placemark>\n" +
+                "</Document></kml>"
+        val list = importPlacemark(KmlImporter(), ByteArrayInputStream(xml.toByteArray()))
+        assertEquals(1, list.size)
+        val p = list[0]
+        assertEquals("Polygon", p.name)
+        assertEquals(longDescription, p.description)
+        assertEquals(-15.0, p.coordinates.longitude.toDouble(), 0.0001)
+        assertEquals(3.25, p.coordinates.latitude.toDouble(), 0.0001)
+    }
+
+    @Test
+    fun testImportNetworkLinkCycle() {
+        fun networkLinks(vararg hrefs: String) =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                    "<kml xmlns=\"http://earth.google.com/kml/2.0\"><Document>\n" +
+                    hrefs.joinToString("") { "<NetworkLink><Url><href>$it</href></Url></NetworkLink>\n" } +
+                    "</Document></kml>"
+
+        val file = File.createTempFile("networkLink", ".kml", context.cacheDir)
+        try {
+            val fileUrl = file.toURI().toURL().toString()
+            val test2Url = KmlImporterTest::class.java.getResource("test2.kml").toString()
+            // linked document links itself and test2 twice
+            file.writeText(networkLinks(fileUrl, test2Url, test2Url))
+            val xml = networkLinks(fileUrl, fileUrl)
+            val list = importPlacemark(KmlImporter(), ByteArrayInputStream(xml.toByteArray()))
+            assertEquals(2, list.size)
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun testImportNetworkLinkRootCycle() {
+        val rootFile = File.createTempFile("networkLinkRoot", ".kml", context.cacheDir)
+        val linkedFile = File.createTempFile("networkLink", ".kml", context.cacheDir)
+        try {
+            val rootUrl = rootFile.toURI().toURL().toString()
+            val linkedUrl = linkedFile.toURI().toURL().toString()
+            val test2Url = KmlImporterTest::class.java.getResource("test2.kml").toString()
+            rootFile.writeText(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                        "<kml xmlns=\"http://earth.google.com/kml/2.0\"><Document>\n" +
+                        "<Placemark><name>Root</name><Point><coordinates>1,2</coordinates></Point></Placemark>\n" +
+                        "<NetworkLink><Url><href>$linkedUrl</href></Url></NetworkLink>\n" +
+                        "</Document></kml>"
+            )
+            // linked document links back to root
+            linkedFile.writeText(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                        "<kml xmlns=\"http://earth.google.com/kml/2.0\"><Document>\n" +
+                        "<NetworkLink><Url><href>$rootUrl</href></Url></NetworkLink>\n" +
+                        "<NetworkLink><Url><href>$test2Url</href></Url></NetworkLink>\n" +
+                        "</Document></kml>"
+            )
+            val importer = KmlImporter()
+            importer.source = rootUrl
+            val list = rootFile.inputStream().use { importPlacemark(importer, it) }
+            assertEquals(3, list.size)
+            assertEquals(1, list.count { it.name == "Root" })
+        } finally {
+            rootFile.delete()
+            linkedFile.delete()
+        }
+    }
+}
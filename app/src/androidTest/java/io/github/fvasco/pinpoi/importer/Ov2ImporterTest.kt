@@ -1,9 +1,11 @@
 package io.github.fvasco.pinpoi.importer
 
 import androidx.test.ext.junit.runners.AndroidJUnit4
+import io.github.fvasco.pinpoi.model.Placemark
 import org.junit.Assert.assertEquals
 import org.junit.Test
 import org.junit.runner.RunWith
+import java.io.File
 
 /**
  * @author Francesco Vasco
@@ -13,7 +15,28 @@ class Ov2ImporterTest : AbstractImporterTestCase() {
 
     @Test
     fun testImportImpl() {
-        val list = importPlacemark(Ov2Importer(), "test.ov2")
+        checkList(importPlacemark(Ov2Importer(), "test.ov2"))
+    }
+
+    @Test
+    fun testImportImplFile() {
+        val file = File.createTempFile("test", ".ov2", context.cacheDir)
+        try {
+            checkNotNull(javaClass.getResourceAsStream("test.ov2")).use { input ->
+                file.outputStream().use { input.copyTo(it) }
+            }
+            val list = ArrayList<Placemark>()
+            val importer = Ov2Importer()
+            importer.collectionId = 1
+            importer.consumer = { list.add(it) }
+            importer.importPlacemarks(file)
+            checkList(list)
+        } finally {
+            file.delete()
+        }
+    }
+
+    private fun checkList(list: List<Placemark>) {
         assertEquals(2, list.size)
 
         var p = list[0]
@@ -0,0 +1,81 @@
+package io.github.fvasco.pinpoi.importer
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import io.github.fvasco.pinpoi.dao.PlacemarkCollectionDao
+import io.github.fvasco.pinpoi.dao.PlacemarkDao
+import io.github.fvasco.pinpoi.model.PlacemarkCollection
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * @author Francesco Vasco
+ */
+@RunWith(AndroidJUnit4::class)
+class PlacemarkCollectionUpdaterTest : AbstractImporterTestCase() {
+
+    private lateinit var placemarkCollectionDao: PlacemarkCollectionDao
+    private lateinit var placemarkDao: PlacemarkDao
+
+    @Before
+    fun setUp() {
+        placemarkCollectionDao = PlacemarkCollectionDao(context)
+        placemarkDao = PlacemarkDao(context)
+        placemarkCollectionDao.open()
+        placemarkDao.open()
+    }
+
+    @After
+    fun tearDown() {
+        placemarkDao.close()
+        placemarkCollectionDao.close()
+    }
+
+    private fun insertPlacemarkCollection(resource: String): PlacemarkCollection {
+        val pc = PlacemarkCollection()
+        pc.name = resource
+        val resourceUrl = javaClass.getResource(resource)
+        pc.source = resourceUrl?.toString() ?: resource
+        placemarkCollectionDao.insert(pc)
+        return pc
+    }
+
+    @Test
+    fun testUpdateAll() {
+        val placemarkCollections = listOf(
+            insertPlacemarkCollection("test2.kml"),
+            insertPlacemarkCollection("wrong"),
+            insertPlacemarkCollection("asc.txt")
+        )
+        val notified = CopyOnWriteArrayList<PlacemarkCollectionUpdater.UpdateResult>()
+        val progress = CopyOnWriteArrayList<Pair<PlacemarkCollection, Int>>()
+        val updater = PlacemarkCollectionUpdater(context)
+        updater.parallelism = 2
+        val results = updater.updateAll(
+            placemarkCollections,
+            progressListener = { pc, placemarkCount -> progress += pc to placemarkCount }
+        ) { notified += it }
+
+        assertEquals(placemarkCollections, results.map { it.placemarkCollection })
+        assertEquals(results.toSet(), notified.toSet())
+        assertEquals(2, progress.last { it.first == placemarkCollections[0] }.second)
+        assertEquals(3, progress.last { it.first == placemarkCollections[2] }.second)
+
+        assertEquals(2, results[0].placemarkCount)
+        assertNull(results[0].error)
+        assertEquals(PlacemarkDao.MergeResult(2, 0, 0), results[0].mergeResult)
+        assertEquals(2, placemarkDao.findAllPlacemarkByCollectionId(placemarkCollections[0].id).size)
+
+        assertEquals(0, results[1].placemarkCount)
+        assertNotNull(results[1].error)
+
+        assertEquals(3, results[2].placemarkCount)
+        assertEquals(3, placemarkCollections[2].poiCount)
+        assertEquals(3, placemarkDao.findAllPlacemarkByCollectionId(placemarkCollections[2].id).size)
+    }
+}
@@ -38,4 +38,37 @@ class TextImporterTest : AbstractImporterTestCase() {
         assertEquals(Coordinates(2.5F, 1.0F), list[0].coordinates)
         assertEquals("location1 to import", list[0].name)
     }
+
+    @Test
+    fun testImportImplSyntax() {
+        val text = """
+            "1.5";"-2.25";"say ""hello"""${'\t'}
+            +3.0${'\t'} 4.0${'\t'}café à la carte
+            5.0 6.0 ,not a separator
+            5.0 6.0,missing separator
+            7.0,8.0;wrong separator
+            9 10.0 "not decimal"
+            """.trimIndent()
+        val list = importPlacemark(TextImporter(), text.byteInputStream())
+        assertEquals(3, list.size)
+        assertEquals(Coordinates(1.5F, -2.25F), list[0].coordinates)
+        assertEquals("say \"hello\"", list[0].name)
+        assertEquals(Coordinates(3F, 4F), list[1].coordinates)
+        assertEquals("caf\u00e9 \u00e0 la carte", list[1].name)
+        assertEquals(Coordinates(5F, 6F), list[2].coordinates)
+        assertEquals(",not a separator", list[2].name)
+    }
+
+    @Test
+    fun testImportImplCharset() {
+        val latin1 = "1.0 2.0 caf\u00e9\n3.0 4.0 \u00e0 la carte".toByteArray(Charsets.ISO_8859_1)
+        val latin1List = importPlacemark(TextImporter(), latin1.inputStream())
+        assertEquals(listOf("caf\u00e9", "\u00e0 la carte"), latin1List.map { it.name })
+
+        val utf8 = byteArrayOf(0xEF.toByte(), 0xBB.toByte(), 0xBF.toByte()) +
+                "1.0 2.0 caf\u00e9".toByteArray(Charsets.UTF_8)
+        val utf8List = importPlacemark(TextImporter(), utf8.inputStream())
+        assertEquals(Coordinates(1F, 2F), utf8List[0].coordinates)
+        assertEquals("caf\u00e9", utf8List[0].name)
+    }
 }
@@ -1,9 +1,11 @@
 package io.github.fvasco.pinpoi.importer
 
 import androidx.test.ext.junit.runners.AndroidJUnit4
+import io.github.fvasco.pinpoi.model.Placemark
 import org.junit.Assert.assertEquals
 import org.junit.Test
 import org.junit.runner.RunWith
+import java.io.File
 
 /**
  * @author Francesco Vasco
@@ -16,4 +18,37 @@ class ZipImporterTest : AbstractImporterTestCase() {
         val list = importPlacemark(ZipImporter(), "test3.kmz")
         assertEquals(3, list.size)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testImportImplFile() {
+        val list = importPlacemarkFile(ordered = true)
+        assertEquals(importPlacemark(ZipImporter(), "test3.kmz"), list)
+    }
+
+    @Test
+    fun testImportImplFileUnordered() {
+        val list = importPlacemarkFile(ordered = false)
+        val expected = importPlacemark(ZipImporter(), "test3.kmz")
+        assertEquals(expected.size, list.size)
+        assertEquals(expected.toSet(), list.toSet())
+    }
+
+    private fun importPlacemarkFile(ordered: Boolean): List<Placemark> {
+        val file = File(context.cacheDir, "test3.kmz")
+        try {
+            checkNotNull(javaClass.getResourceAsStream("test3.kmz")).use { inputStream ->
+                file.outputStream().use { inputStream.copyTo(it) }
+            }
+            val importer = ZipImporter()
+            importer.parallelism = 4
+            importer.ordered = ordered
+            val list = ArrayList<Placemark>()
+            importer.collectionId = 1
+            importer.consumer = { list.add(it) }
+            importer.importPlacemarks(file)
+            return list
+        } finally {
+            file.delete()
+        }
+    }
+}
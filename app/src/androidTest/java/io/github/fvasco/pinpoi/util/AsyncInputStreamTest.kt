@@ -0,0 +1,91 @@
+package io.github.fvasco.pinpoi.util
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.SequenceInputStream
+
+/**
+ * @author Francesco Vasco
+ */
+@RunWith(AndroidJUnit4::class)
+class AsyncInputStreamTest {
+
+    @Test
+    fun testRead() {
+        val data = ByteArray(100_000) { it.toByte() }
+        val read = AsyncInputStream(data.inputStream(), 1024).use { it.readBytes() }
+        assertArrayEquals(data, read)
+    }
+
+    @Test
+    fun testReadTee() {
+        val data = ByteArray(100_000) { it.toByte() }
+        val teeFile = File.createTempFile("test", ".tmp")
+        try {
+            AsyncInputStream(data.inputStream(), 1024, teeFile, 10_000).use { asyncInputStream ->
+                assertArrayEquals(data, asyncInputStream.readBytes())
+                assertArrayEquals(data, asyncInputStream.awaitTee().readBytes())
+                assertFalse(asyncInputStream.pipeBroken)
+            }
+        } finally {
+            teeFile.delete()
+        }
+    }
+
+    @Test
+    fun testReadTeePipeBroken() {
+        val data = ByteArray(100_000) { it.toByte() }
+        val teeFile = File.createTempFile("test", ".tmp")
+        try {
+            AsyncInputStream(data.inputStream(), 1024, teeFile, 100).use { asyncInputStream ->
+                // nobody reads, source is copied in tee file
+                assertArrayEquals(data, asyncInputStream.awaitTee().readBytes())
+                assertTrue(asyncInputStream.pipeBroken)
+                try {
+                    asyncInputStream.readBytes()
+                    fail()
+                } catch (e: IOException) {
+                    // ok
+                }
+            }
+        } finally {
+            teeFile.delete()
+        }
+    }
+
+    @Test
+    fun testReadError() {
+        val failingInputStream = object : InputStream() {
+            override fun read(): Int = throw IOException("test")
+        }
+        val source = SequenceInputStream(ByteArray(10_000).inputStream(), failingInputStream)
+        try {
+            AsyncInputStream(source, 1024).use { it.readBytes() }
+            fail()
+        } catch (e: IOException) {
+            // ok
+        }
+    }
+
+    @Test
+    fun testReadRuntimeError() {
+        val failingInputStream = object : InputStream() {
+            override fun read(): Int = throw IllegalStateException("test")
+        }
+        val source = SequenceInputStream(ByteArray(10_000).inputStream(), failingInputStream)
+        try {
+            AsyncInputStream(source, 1024).use { it.readBytes() }
+            fail()
+        } catch (e: IOException) {
+            assertTrue(e.cause is IllegalStateException)
+        }
+    }
+}
@@ -1,19 +1,29 @@
 package io.github.fvasco.pinpoi.util
 
 import android.content.Context
+import android.os.Build
 import androidx.test.ext.junit.runners.AndroidJUnit4
 import androidx.test.platform.app.InstrumentationRegistry
 import io.github.fvasco.pinpoi.dao.PlacemarkCollectionDao
 import io.github.fvasco.pinpoi.dao.PlacemarkDao
+import io.github.fvasco.pinpoi.dao.use
+import io.github.fvasco.pinpoi.model.Placemark
+import io.github.fvasco.pinpoi.model.PlacemarkAnnotation
 import org.junit.After
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
 import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Assume.assumeTrue
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
 import java.io.File
 import java.io.FileInputStream
 import java.io.FileOutputStream
+import java.io.IOException
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
 
 /**
  * @author Francesco Vasco
@@ -53,7 +63,7 @@ class BackupManagerTest {
     @Test
     fun testBackup() {
         // create
-        backupManager.create(FileOutputStream(backupFile))
+        val created = backupManager.create(FileOutputStream(backupFile))
         assertTrue(backupFile.length() > 0)
 
         // restore
@@ -82,7 +92,7 @@ class BackupManagerTest {
         placemarkCollectionDao.close()
         placemarkDao.close()
 
-        backupManager.restore(FileInputStream(backupFile))
+        assertEquals(created, backupManager.restore(FileInputStream(backupFile)))
 
         placemarkCollectionDao.open()
         placemarkDao.open()
@@ -97,4 +107,118 @@ class BackupManagerTest {
         placemarkCollectionDao.close()
         placemarkDao.close()
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testBackupOnline() {
+        // VACUUM INTO requires SQLite 3.27
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
+        placemarkDao.open()
+        try {
+            backupManager.create(FileOutputStream(backupFile))
+            assertFalse(placemarkDao.isEmpty())
+        } finally {
+            placemarkDao.close()
+        }
+        assertTrue(backupFile.length() > 0)
+    }
+
+    @Test
+    fun testRestoreCorrupted() {
+        val placemarkCollectionCount = placemarkCollectionDao.use { it.findAllPlacemarkCollection().size }
+        ZipOutputStream(FileOutputStream(backupFile)).use { zipOutputStream ->
+            zipOutputStream.putNextEntry(ZipEntry("Placemark"))
+            zipOutputStream.write("SQLite format 3".toByteArray())
+            zipOutputStream.closeEntry()
+        }
+
+        try {
+            backupManager.restore(FileInputStream(backupFile))
+            fail()
+        } catch (e: IOException) {
+            // ok
+        }
+
+        // database is untouched
+        assertEquals(placemarkCollectionCount, placemarkCollectionDao.use { it.findAllPlacemarkCollection().size })
+    }
+
+    @Test
+    fun testDeltaBackup() {
+        val deltaFile = File(instrumentationContext.cacheDir, "test.delta")
+        val since = backupManager.create(FileOutputStream(backupFile))
+
+        // change database
+        val changedCollection = placemarkCollectionDao.use { placemarkCollectionDao ->
+            placemarkDao.use { placemarkDao ->
+                val placemarkCollections = placemarkCollectionDao.findAllPlacemarkCollection()
+                val deletedCollection = placemarkCollections[0]
+                placemarkDao.deleteByCollectionId(deletedCollection.id)
+                placemarkCollectionDao.delete(deletedCollection)
+
+                val changedCollection = placemarkCollections[1]
+                placemarkDao.deleteByCollectionId(changedCollection.id)
+                placemarkDao.insert(
+                    listOf(Placemark(name = "Pompei", coordinates = Coordinates(40.7491819f, 14.5007385f), collectionId = changedCollection.id))
+                )
+                changedCollection.poiCount = 1
+                changedCollection.lastUpdate = System.currentTimeMillis()
+                placemarkCollectionDao.update(changedCollection)
+
+                placemarkDao.update(PlacemarkAnnotation(Coordinates(40.7491819f, 14.5007385f), "Delta note", true))
+                changedCollection
+            }
+        }
+        val expectedPlacemarkCollections = placemarkCollectionDao.use { it.findAllPlacemarkCollection() }
+        val expectedPlacemarkAnnotations = placemarkDao.use { it.findAllPlacemarkAnnotation() }
+
+        val deltaBackupManager = DeltaBackupManager(placemarkCollectionDao, placemarkDao)
+        try {
+            val created = deltaBackupManager.create(FileOutputStream(deltaFile), since)
+            assertTrue(created >= since)
+            assertEquals(
+                created,
+                deltaBackupManager.restore(FileInputStream(backupFile), listOf(FileInputStream(deltaFile)))
+            )
+        } finally {
+            deltaFile.delete()
+        }
+
+        assertEquals(expectedPlacemarkCollections, placemarkCollectionDao.use { it.findAllPlacemarkCollection() })
+        assertEquals(
+            "Pompei",
+            placemarkDao.use { it.findAllPlacemarkByCollectionId(changedCollection.id).single().name }
+        )
+        assertEquals(expectedPlacemarkAnnotations.toSet(), placemarkDao.use { it.findAllPlacemarkAnnotation() }.toSet())
+    }
+
+    @Test
+    fun testDeltaBackupBrokenChain() {
+        val deltaFile = File(instrumentationContext.cacheDir, "test.delta")
+        val created = backupManager.create(FileOutputStream(backupFile))
+        val expectedPlacemarkCollections = placemarkCollectionDao.use { it.findAllPlacemarkCollection() }
+
+        // delta misses changes between the full backup and its since
+        placemarkCollectionDao.use { placemarkCollectionDao ->
+            placemarkDao.use { placemarkDao ->
+                val deletedCollection = placemarkCollectionDao.findAllPlacemarkCollection()[0]
+                placemarkDao.deleteByCollectionId(deletedCollection.id)
+                placemarkCollectionDao.delete(deletedCollection)
+            }
+        }
+        val deltaBackupManager = DeltaBackupManager(placemarkCollectionDao, placemarkDao)
+        try {
+            deltaBackupManager.create(FileOutputStream(deltaFile), created + 1)
+            try {
+                deltaBackupManager.restore(FileInputStream(backupFile), listOf(FileInputStream(deltaFile)))
+                fail()
+            } catch (e: IOException) {
+                // ok
+            }
+        } finally {
+            deltaFile.delete()
+        }
+
+        // full backup is restored, delta is not applied
+        assertEquals(expectedPlacemarkCollections, placemarkCollectionDao.use { it.findAllPlacemarkCollection() })
+    }
+}
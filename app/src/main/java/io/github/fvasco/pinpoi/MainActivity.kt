@@ -40,7 +40,9 @@ import io.github.fvasco.pinpoi.dao.use
 import io.github.fvasco.pinpoi.databinding.ActivityMainBinding
 import io.github.fvasco.pinpoi.model.PlacemarkCollection
 import io.github.fvasco.pinpoi.util.BackupManager
+import io.github.fvasco.pinpoi.util.Coordinates
 import io.github.fvasco.pinpoi.util.DEBUG
+import io.github.fvasco.pinpoi.util.DeltaBackupManager
 import io.github.fvasco.pinpoi.util.DismissOnClickListener
 import io.github.fvasco.pinpoi.util.LocationUtil
 import io.github.fvasco.pinpoi.util.initAdMob
@@ -203,12 +205,22 @@ class MainActivity
             }
 
             R.id.create_backup -> {
-                showCreateBackupConfirm()
+                showCreateBackupConfirm(false)
                 true
             }
 
             R.id.restore_backup -> {
-                showRestoreBackupConfirm()
+                showRestoreBackupConfirm(false)
+                true
+            }
+
+            R.id.create_delta_backup -> {
+                showCreateBackupConfirm(true)
+                true
+            }
+
+            R.id.restore_delta_backup -> {
+                showRestoreBackupConfirm(true)
                 true
             }
 
@@ -459,6 +471,19 @@ class MainActivity
 
     fun onSearchPoi(view: View) {
         try {
+            val latitude = try {
+                binding.latitudeText.text.toString().replace(',', '.').toFloat()
+            } catch (e: Exception) {
+                binding.latitudeText.requestFocus()
+                throw e
+            }
+            val longitude = try {
+                binding.longitudeText.text.toString().replace(',', '.').toFloat()
+            } catch (e: Exception) {
+                binding.longitudeText.requestFocus()
+                throw e
+            }
+            val range = (binding.rangeSeek.progress + RANGE_MIN) * 1000
             val collectionsIds: LongArray =
                 if (selectedPlacemarkCollection == null) {
                     PlacemarkCollectionDao(applicationContext).use { placemarkCollectionDao ->
@@ -468,7 +493,17 @@ class MainActivity
                             placemarkCollectionDao.findAllPlacemarkCollectionInCategory(
                                 selectedPlacemarkCategory
                             )
-                        collections.filter { it.poiCount > 0 }.map { it.id }.toLongArray()
+                        val nonEmptyCollections = collections.filter { it.poiCount > 0 }
+                        if (nonEmptyCollections.isEmpty()) {
+                            showLongToast(getString(R.string.n_placemarks_found, 0), view.context)
+                            onManagePlacemarkCollections()
+                            return
+                        }
+                        // skip collections far from search area
+                        val coordinates = Coordinates(latitude, longitude)
+                        nonEmptyCollections
+                            .filter { PlacemarkDao.isCollectionNear(it, coordinates, range.toDouble()) }
+                            .map { it.id }.toLongArray()
                     }
                 } else {
                     longArrayOf(selectedPlacemarkCollection!!.id)
@@ -479,38 +514,18 @@ class MainActivity
             )
             if (collectionsIds.isEmpty()) {
                 showLongToast(getString(R.string.n_placemarks_found, 0), view.context)
-                onManagePlacemarkCollections()
             } else {
                 val context = view.context
                 val intent = Intent(context, PlacemarkListActivity::class.java).apply {
-                    try {
-                        putExtra(
-                            PlacemarkListActivity.ARG_LATITUDE,
-                            binding.latitudeText.text.toString().replace(',', '.').toFloat()
-                        )
-                    } catch (e: Exception) {
-                        binding.latitudeText.requestFocus()
-                        throw e
-                    }
-                    try {
-                        putExtra(
-                            PlacemarkListActivity.ARG_LONGITUDE,
-                            binding.longitudeText.text.toString().replace(',', '.').toFloat()
-                        )
-                    } catch (e: Exception) {
-                        binding.longitudeText.requestFocus()
-                        throw e
-                    }
+                    putExtra(PlacemarkListActivity.ARG_LATITUDE, latitude)
+                    putExtra(PlacemarkListActivity.ARG_LONGITUDE, longitude)
                     putExtra(
                         PlacemarkListActivity.ARG_NAME_FILTER,
                         binding.nameFilterText.text.toString()
                     )
                     putExtra(PlacemarkListActivity.ARG_FAVOURITE, binding.favouriteCheck.isChecked)
                     putExtra(PlacemarkListActivity.ARG_SHOW_MAP, binding.showMapCheck.isChecked)
-                    putExtra(
-                        PlacemarkListActivity.ARG_RANGE,
-                        (binding.rangeSeek.progress + RANGE_MIN) * 1000
-                    )
+                    putExtra(PlacemarkListActivity.ARG_RANGE, range)
                     putExtra(PlacemarkListActivity.ARG_COLLECTION_IDS, collectionsIds)
                 }
                 context.startActivity(intent)
@@ -526,24 +541,37 @@ class MainActivity
         startActivity(Intent(this, PlacemarkCollectionListActivity::class.java))
     }
 
-    private fun showCreateBackupConfirm() {
+    /**
+     * Creation time of the last created or restored backup, full or delta.
+     * A delta backup contains changes since it, and it must follow it to be restored.
+     */
+    private var backupTime: Long
+        get() = getPreferences(Context.MODE_PRIVATE).getLong(PREFERENCE_BACKUP_TIME, 0)
+        set(value) = getPreferences(Context.MODE_PRIVATE).edit { putLong(PREFERENCE_BACKUP_TIME, value) }
+
+    private fun showCreateBackupConfirm(delta: Boolean) {
+        if (delta && backupTime == 0L) {
+            showToast(R.string.error_no_backup, this)
+            return
+        }
         val intent = Intent(Intent.ACTION_CREATE_DOCUMENT).apply {
             type = "*/*"
-            putExtra(Intent.EXTRA_TITLE, "pinpoi.backup")
+            putExtra(Intent.EXTRA_TITLE, if (delta) "pinpoi.delta.backup" else "pinpoi.backup")
             addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION)
         }
-        startActivityForResult(intent, BACKUP_CREATE_RESULT_ID)
+        startActivityForResult(intent, if (delta) DELTA_BACKUP_CREATE_RESULT_ID else BACKUP_CREATE_RESULT_ID)
     }
 
-    private fun createBackup(outputStream: OutputStream) {
-        showProgressDialog(getString(R.string.action_create_backup), this) {
+    private fun createBackup(outputStream: OutputStream, delta: Boolean) {
+        val title = getString(if (delta) R.string.action_create_delta_backup else R.string.action_create_backup)
+        val since = backupTime
+        showProgressDialog(title, this) {
             try {
-                val backupManager =
-                    BackupManager(
-                        PlacemarkCollectionDao(applicationContext),
-                        PlacemarkDao(applicationContext)
-                    )
-                backupManager.create(outputStream)
+                val placemarkCollectionDao = PlacemarkCollectionDao(applicationContext)
+                val placemarkDao = PlacemarkDao(applicationContext)
+                backupTime =
+                    if (delta) DeltaBackupManager(placemarkCollectionDao, placemarkDao).create(outputStream, since)
+                    else BackupManager(placemarkCollectionDao, placemarkDao).create(outputStream)
             } catch (e: Exception) {
                 Log.w(MainActivity::class.java.simpleName, "create backup failed", e)
                 showToast(e)
@@ -551,23 +579,24 @@ class MainActivity
         }
     }
 
-    private fun showRestoreBackupConfirm() {
+    private fun showRestoreBackupConfirm(delta: Boolean) {
         val intent = Intent(Intent.ACTION_OPEN_DOCUMENT).apply {
             type = "*/*"
             addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION)
         }
-        startActivityForResult(intent, BACKUP_RESTORE_RESULT_ID)
+        startActivityForResult(intent, if (delta) DELTA_BACKUP_RESTORE_RESULT_ID else BACKUP_RESTORE_RESULT_ID)
     }
 
-    private fun restoreBackup(inputStream: InputStream) {
-        showProgressDialog(getString(R.string.action_restore_backup), this) {
+    private fun restoreBackup(inputStream: InputStream, delta: Boolean) {
+        val title = getString(if (delta) R.string.action_restore_delta_backup else R.string.action_restore_backup)
+        val maxSince = backupTime
+        showProgressDialog(title, this) {
             try {
-                val backupManager =
-                    BackupManager(
-                        PlacemarkCollectionDao(applicationContext),
-                        PlacemarkDao(applicationContext)
-                    )
-                backupManager.restore(inputStream)
+                val placemarkCollectionDao = PlacemarkCollectionDao(applicationContext)
+                val placemarkDao = PlacemarkDao(applicationContext)
+                backupTime =
+                    if (delta) DeltaBackupManager(placemarkCollectionDao, placemarkDao).restore(inputStream, maxSince)
+                    else BackupManager(placemarkCollectionDao, placemarkDao).restore(inputStream)
                 runOnUiThread { setPlacemarkCollection(null) }
             } catch (e: Exception) {
                 Log.w(MainActivity::class.java.simpleName, "restore backup failed", e)
@@ -580,16 +609,16 @@ class MainActivity
         super.onActivityResult(requestCode, resultCode, data)
         if (resultCode != Activity.RESULT_OK) return
 
-        if (requestCode == BACKUP_CREATE_RESULT_ID) {
+        if (requestCode == BACKUP_CREATE_RESULT_ID || requestCode == DELTA_BACKUP_CREATE_RESULT_ID) {
             val uri = data?.data ?: return
             val outputStream = contentResolver?.openOutputStream(uri) ?: return
-            createBackup(outputStream)
+            createBackup(outputStream, requestCode == DELTA_BACKUP_CREATE_RESULT_ID)
         }
 
-        if (requestCode == BACKUP_RESTORE_RESULT_ID) {
+        if (requestCode == BACKUP_RESTORE_RESULT_ID || requestCode == DELTA_BACKUP_RESTORE_RESULT_ID) {
             val uri = data?.data ?: return
             val outputStream = contentResolver?.openInputStream(uri) ?: return
-            restoreBackup(outputStream)
+            restoreBackup(outputStream, requestCode == DELTA_BACKUP_RESTORE_RESULT_ID)
         }
     }
 
@@ -725,10 +754,13 @@ class MainActivity
         private const val PREFERENCE_GPS = "gps"
         private const val PREFERENCE_ADDRESS = "address"
         private const val PREFERENCE_SHOW_MAP = "showMap"
+        private const val PREFERENCE_BACKUP_TIME = "backupTime"
         private const val PERMISSION_GPS_ON = 1
 
         private const val BACKUP_CREATE_RESULT_ID = 2
         private const val BACKUP_RESTORE_RESULT_ID = 3
+        private const val DELTA_BACKUP_CREATE_RESULT_ID = 4
+        private const val DELTA_BACKUP_RESTORE_RESULT_ID = 5
 
         /**
          * Smallest searchable range
@@ -29,7 +29,6 @@ import io.github.fvasco.pinpoi.util.showLongToast
 import io.github.fvasco.pinpoi.util.showToast
 import io.github.fvasco.pinpoi.util.tryDismiss
 import java.io.InputStream
-import java.text.DecimalFormat
 
 /**
  * A fragment representing a single Placemark Collection detail screen.
@@ -166,7 +165,6 @@ class PlacemarkCollectionDetailFragment : Fragment() {
         try {
             progressDialog.setTitle(getString(R.string.update, placemarkCollection.name))
             savePlacemarkCollection()
-            val oldCount = placemarkCollection.poiCount
             val importerFacade = ImporterFacade(requireContext())
             importerFacade.setProgressDialog(progressDialog)
             importerFacade.setProgressDialogMessageFormat(getString(R.string.poi_count))
@@ -194,11 +192,13 @@ class PlacemarkCollectionDetailFragment : Fragment() {
                         ), context
                     )
                 } else {
+                    val mergeResult = importerFacade.lastMergeResult
                     showLongToast(
                         getString(
                             R.string.update_collection_success,
                             count,
-                            DecimalFormat("+0;-0").format(count - oldCount)
+                            if (mergeResult == null) ""
+                            else "+${mergeResult.added} -${mergeResult.removed} ~${mergeResult.changed}"
                         ), context
                     )
                 }
@@ -243,9 +243,17 @@ class PlacemarkCollectionDetailFragment : Fragment() {
 
     fun deletePlacemarkCollection() {
         PlacemarkDao(requireContext()).use { placemarkDao ->
-            placemarkDao.deleteByCollectionId(placemarkCollection.id)
+            // same database, delete atomically
+            val database = placemarkDao.database!!
+            database.beginTransaction()
+            try {
+                placemarkDao.deleteByCollectionId(placemarkCollection.id)
+                placemarkCollectionDao.delete(placemarkCollection)
+                database.setTransactionSuccessful()
+            } finally {
+                database.endTransaction()
+            }
         }
-        placemarkCollectionDao.delete(placemarkCollection)
     }
 
     fun openFileFormatFilterChooser() {
@@ -6,7 +6,10 @@ import android.content.Intent
 import android.graphics.Paint
 import android.net.Uri
 import android.os.Bundle
+import android.util.Log
 import android.view.LayoutInflater
+import android.view.Menu
+import android.view.MenuItem
 import android.view.View
 import android.view.ViewGroup
 import android.webkit.MimeTypeMap
@@ -17,8 +20,11 @@ import androidx.appcompat.app.AppCompatActivity
 import androidx.recyclerview.widget.RecyclerView
 import io.github.fvasco.pinpoi.dao.PlacemarkCollectionDao
 import io.github.fvasco.pinpoi.databinding.ActivityPlacemarkcollectionListBinding
+import io.github.fvasco.pinpoi.importer.PlacemarkCollectionUpdater
 import io.github.fvasco.pinpoi.model.PlacemarkCollection
 import io.github.fvasco.pinpoi.util.DismissOnClickListener
+import io.github.fvasco.pinpoi.util.ProgressDialog
+import io.github.fvasco.pinpoi.util.doAsync
 import io.github.fvasco.pinpoi.util.showToast
 import io.github.fvasco.pinpoi.util.tryDismiss
 
@@ -64,6 +70,83 @@ class PlacemarkCollectionListActivity : AppCompatActivity() {
         super.onDestroy()
     }
 
+    override fun onCreateOptionsMenu(menu: Menu): Boolean {
+        menuInflater.inflate(R.menu.menu_collection_list, menu)
+        return true
+    }
+
+    override fun onOptionsItemSelected(item: MenuItem): Boolean {
+        when (item.itemId) {
+            R.id.action_update_all -> {
+                updateAllPlacemarkCollections()
+                return true
+            }
+        }
+        return super.onOptionsItemSelected(item)
+    }
+
+    /**
+     * Update all collections with a source, then show the update results
+     */
+    private fun updateAllPlacemarkCollections() {
+        val placemarkCollections =
+            placemarkCollectionDao.findAllPlacemarkCollection().filter { it.source.isNotBlank() }
+        if (placemarkCollections.isEmpty()) return
+        val progressDialog = ProgressDialog(this)
+        progressDialog.setTitle(getString(R.string.action_update_all))
+        progressDialog.show()
+        doAsync {
+            try {
+                val updateResults = PlacemarkCollectionUpdater(applicationContext)
+                    .updateAll(placemarkCollections, progressListener = { placemarkCollection, placemarkCount ->
+                        runOnUiThread {
+                            progressDialog.setTitle(
+                                getString(R.string.update, placemarkCollection.name) + "\n" +
+                                        getString(R.string.n_placemarks_found, placemarkCount)
+                            )
+                        }
+                    }) { updateResult ->
+                        runOnUiThread {
+                            progressDialog.setTitle(getString(R.string.update, updateResult.placemarkCollection.name))
+                        }
+                    }
+                val message = updateResults.joinToString("\n") { updateResult ->
+                    val name = updateResult.placemarkCollection.name
+                    val mergeResult = updateResult.mergeResult
+                    when {
+                        updateResult.error != null ->
+                            getString(R.string.error_update, name, updateResult.error.message)
+
+                        updateResult.placemarkCount == 0 ->
+                            getString(R.string.error_update, name, getString(R.string.n_placemarks_found, 0))
+
+                        else -> name + ": " + getString(
+                            R.string.update_collection_success,
+                            updateResult.placemarkCount,
+                            if (mergeResult == null) ""
+                            else "+${mergeResult.added} -${mergeResult.removed} ~${mergeResult.changed}"
+                        )
+                    }
+                }
+                runOnUiThread {
+                    AlertDialog.Builder(this)
+                        .setTitle(getString(R.string.action_update_all))
+                        .setMessage(message)
+                        .setPositiveButton(R.string.close, DismissOnClickListener)
+                        .show()
+                }
+            } catch (e: Exception) {
+                Log.e(PlacemarkCollectionListActivity::class.java.simpleName, "updateAllPlacemarkCollections", e)
+                showToast(e)
+            } finally {
+                runOnUiThread {
+                    progressDialog.tryDismiss()
+                    setupRecyclerView()
+                }
+            }
+        }
+    }
+
     private fun setupRecyclerView() {
         val recyclerView = binding.placemarkCollectionFrameList.placemarkcollectionList
         recyclerView.adapter =
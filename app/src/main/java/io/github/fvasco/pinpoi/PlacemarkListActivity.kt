@@ -5,10 +5,8 @@ import android.content.Context
 import android.content.Intent
 import android.content.pm.PackageManager
 import android.content.res.Configuration
-import android.graphics.PorterDuff
-import android.graphics.PorterDuffColorFilter
+import android.graphics.Color
 import android.graphics.Typeface
-import android.location.Location
 import android.os.Bundle
 import android.util.Log
 import android.view.LayoutInflater
@@ -24,18 +22,21 @@ import androidx.core.app.NavUtils
 import androidx.core.content.ContextCompat
 import androidx.core.content.edit
 import androidx.recyclerview.widget.RecyclerView
-import io.github.fvasco.pinpoi.dao.PlacemarkCollectionDao
 import io.github.fvasco.pinpoi.dao.PlacemarkDao
 import io.github.fvasco.pinpoi.dao.use
 import io.github.fvasco.pinpoi.databinding.ActivityPlacemarkListBinding
+import io.github.fvasco.pinpoi.model.PlacemarkCluster
 import io.github.fvasco.pinpoi.model.PlacemarkSearchResult
 import io.github.fvasco.pinpoi.util.Coordinates
 import io.github.fvasco.pinpoi.util.LocationUtil
+import io.github.fvasco.pinpoi.util.PlacemarkOverlay
+import io.github.fvasco.pinpoi.util.PlacemarkTileLoader
 import io.github.fvasco.pinpoi.util.showLongToast
 import io.github.fvasco.pinpoi.util.showProgressDialog
 import io.github.fvasco.pinpoi.util.showToast
 import io.github.fvasco.pinpoi.util.toGeoPoint
 import org.osmdroid.tileprovider.tilesource.TileSourceFactory
+import org.osmdroid.util.BoundingBox
 import org.osmdroid.views.CustomZoomButtonsController
 import org.osmdroid.views.MapView
 import org.osmdroid.views.overlay.Marker
@@ -57,6 +58,10 @@ class PlacemarkListActivity : AppCompatActivity() {
     private var fragment: PlacemarkDetailFragment? = null
     private lateinit var searchCoordinate: Coordinates
     private var range: Int = 0
+    private var nameFilter: String = ""
+    private var favourite: Boolean = false
+    private var collectionIds: Set<Long> = emptySet()
+    private var placemarkTileLoader: PlacemarkTileLoader? = null
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -112,6 +117,11 @@ class PlacemarkListActivity : AppCompatActivity() {
         binding.placemarkFrameList.map.onPause()
     }
 
+    override fun onDestroy() {
+        placemarkTileLoader?.close()
+        super.onDestroy()
+    }
+
     override fun onRequestPermissionsResult(
         requestCode: Int,
         permissions: Array<String>, grantResults: IntArray
@@ -172,50 +182,30 @@ class PlacemarkListActivity : AppCompatActivity() {
         map.setMultiTouchControls(true)
 
         searchPoi { placemarksSearchResult ->
-            val collectionNameMap: Map<Long, String> =
-                PlacemarkCollectionDao(applicationContext).use { placemarkCollectionDao ->
-                    try {
-                        placemarkCollectionDao.findAllPlacemarkCollection()
-                            .associate { it.id to it.name }
-                    } catch (e: Exception) {
-                        Log.e(
-                            PlacemarkCollectionDetailFragment::class.java.simpleName,
-                            "searchPoi progress",
-                            e
-                        )
-                        mapOf()
-                    }
-                }
-
-            placemarksSearchResult
-                .sortedWith(compareBy(PlacemarkSearchResult::flagged).thenBy { !it.note.isNullOrEmpty() })
-                .forEach { placemark ->
-                    val collectionName = collectionNameMap[placemark.collectionId] ?: ""
-                    val marker = Marker(map)
-                    marker.id = placemark.id.toString()
-                    marker.title = placemark.name
-                    marker.snippet = collectionName
-                    marker.subDescription = placemark.note
-                    marker.position = placemark.coordinates.toGeoPoint()
-                    marker.relatedObject = placemark
-                    val iconId = when {
-                        placemark.flagged -> R.drawable.map_marker_favourite
-                        placemark.note != null -> R.drawable.map_marker_note
-                        else -> R.drawable.map_marker
-                    }
-                    val iconResource =
-                        resources.getDrawable(iconId, context.theme)
-                            .apply {
-                                colorFilter = PorterDuffColorFilter(
-                                    colorFor(collectionName.hashCode()),
-                                    PorterDuff.Mode.SRC_ATOP
-                                )
-                            }
-                    marker.icon = iconResource
-                    marker.setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_CENTER)
-                    marker.infoWindow = PoiMarker(map)
-                    map.overlays.add(marker)
-                }
+            // a single marker shows the info window of the tapped placemark
+            val selectionMarker = Marker(map).apply {
+                setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_CENTER)
+                icon = resources.getDrawable(R.drawable.map_marker, context.theme)
+                infoWindow = PoiMarker(map)
+            }
+            val placemarkOverlay = PlacemarkOverlay(
+                context,
+                iconOf = { iconFor(it) },
+                colorOf = { colorFor(it.collectionName.hashCode()) },
+                onTap = { placemark ->
+                    selectionMarker.closeInfoWindow()
+                    selectionMarker.id = placemark.id.toString()
+                    selectionMarker.title = placemark.name
+                    selectionMarker.snippet = placemark.collectionName
+                    selectionMarker.subDescription = placemark.note
+                    selectionMarker.position = placemark.coordinates.toGeoPoint()
+                    selectionMarker.relatedObject = placemark
+                    selectionMarker.showInfoWindow()
+                })
+            placemarkOverlay.setPlacemarks(
+                SEARCH_RESULT_GROUP_ID, placemarksSearchResult.sortedWith(MARKER_ORDER)
+            )
+            map.overlays.add(placemarkOverlay)
 
             // search center
             map.overlays.add(Marker(map).apply {
@@ -225,24 +215,76 @@ class PlacemarkListActivity : AppCompatActivity() {
                 icon = resources.getDrawable(R.drawable.map_marker_here, context.theme)
             })
 
+            // load placemarks around while exploring the map
+            if (collectionIds.isNotEmpty()) {
+                val clusterMarkers = HashMap<Long, List<Marker>>()
+                placemarkTileLoader?.close()
+                placemarkTileLoader = PlacemarkTileLoader(
+                    context, map, collectionIds, nameFilter, favourite,
+                    placemarksSearchResult.map(PlacemarkSearchResult::id).toSet(),
+                    object : PlacemarkTileLoader.Listener {
+                        override fun onTileShow(tileId: Long, tile: PlacemarkTileLoader.Tile) {
+                            placemarkOverlay.setPlacemarks(tileId, tile.placemarks.sortedWith(MARKER_ORDER))
+                            val markers = tile.clusters.map { createClusterMarker(map, it) }
+                            clusterMarkers[tileId] = markers
+                            map.overlays.addAll(markers)
+                            map.invalidate()
+                        }
+
+                        override fun onTileHide(tileId: Long, tile: PlacemarkTileLoader.Tile) {
+                            placemarkOverlay.removePlacemarks(tileId)
+                            clusterMarkers.remove(tileId)?.let { map.overlays.removeAll(it.toSet()) }
+                            map.invalidate()
+                        }
+                    }).apply { scheduleRefresh() }
+            }
+
             // force items draw
             map.invalidate()
             map.requestLayout()
         }
     }
 
+    /**
+     * A cluster shows placemark count, zoom in on click
+     */
+    private fun createClusterMarker(map: MapView, cluster: PlacemarkCluster): Marker {
+        val marker = Marker(map)
+        marker.position = cluster.coordinates.toGeoPoint()
+        marker.setTextLabelBackgroundColor(CLUSTER_COLOR)
+        marker.setTextLabelForegroundColor(Color.WHITE)
+        marker.setTextIcon(cluster.size.toString())
+        marker.setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_CENTER)
+        marker.setOnMarkerClickListener { _, mapView ->
+            if (cluster.latitudeMin < cluster.latitudeMax || cluster.longitudeMin < cluster.longitudeMax) {
+                mapView.zoomToBoundingBox(
+                    BoundingBox(
+                        cluster.latitudeMax.toDouble(), cluster.longitudeMax.toDouble(),
+                        cluster.latitudeMin.toDouble(), cluster.longitudeMin.toDouble()
+                    ).increaseByScale(1.5f),
+                    true
+                )
+            } else {
+                // placemarks at same position
+                mapView.controller.animateTo(marker.position, mapView.maxZoomLevel, null)
+            }
+            true
+        }
+        return marker
+    }
+
     private fun searchPoi(placemarksConsumer: (Collection<PlacemarkSearchResult>) -> Unit) {
         // load parameters
         val preferences = getPreferences(Context.MODE_PRIVATE)
-        val nameFilter: String = intent.getStringExtra(ARG_NAME_FILTER)
+        nameFilter = intent.getStringExtra(ARG_NAME_FILTER)
             ?: preferences.getString(ARG_NAME_FILTER, null)
             ?: ""
-        val favourite =
+        favourite =
             intent.getBooleanExtra(ARG_FAVOURITE, preferences.getBoolean(ARG_FAVOURITE, false))
 
         // read collections id or parse from preference
-        val collectionIds = intent.getLongArrayExtra(ARG_COLLECTION_IDS)?.toSet()
-            ?: preferences.getStringSet(ARG_COLLECTION_IDS, setOf())?.map(String::toLong)
+        collectionIds = intent.getLongArrayExtra(ARG_COLLECTION_IDS)?.toSet()
+            ?: preferences.getStringSet(ARG_COLLECTION_IDS, setOf())?.map(String::toLong)?.toSet()
             ?: emptySet()
 
         // save parameters in preferences
@@ -323,7 +365,6 @@ class PlacemarkListActivity : AppCompatActivity() {
 
         private val decimalFormat = DecimalFormat()
         private val stringBuilder = StringBuilder()
-        private val floatArray = FloatArray(2)
         private var placemarks: Array<PlacemarkSearchResult>? = null
 
         init {
@@ -345,16 +386,9 @@ class PlacemarkListActivity : AppCompatActivity() {
         override fun onBindViewHolder(holder: ViewHolder, position: Int) {
             val placemark = placemarks!![position]
             holder.placemark = placemark
-            Location.distanceBetween(
-                searchCoordinate.latitude.toDouble(),
-                searchCoordinate.longitude.toDouble(),
-                placemark.coordinates.latitude.toDouble(),
-                placemark.coordinates.longitude.toDouble(),
-                floatArray
-            )
-            val distance = floatArray[0]
+            val distance = placemark.distance
             // calculate index for arrow
-            var arrowIndex = (floatArray[1] + 45f / 2f).roundToInt()
+            var arrowIndex = (placemark.bearing + 45f / 2f).roundToInt()
             if (arrowIndex < 0) {
                 arrowIndex += 360
             }
@@ -461,6 +495,26 @@ class PlacemarkListActivity : AppCompatActivity() {
                 0xFFFF00, // yellow
             ).map { it xor 0xFF000000u.toInt() }
 
+        // dark slate gray
+        private const val CLUSTER_COLOR = 0xFF2F4F4F.toInt()
+
+        /**
+         * Draw flagged and annotated placemarks on top
+         */
+        private val MARKER_ORDER =
+            compareBy(PlacemarkSearchResult::flagged).thenBy { !it.note.isNullOrEmpty() }
+
+        /**
+         * [PlacemarkOverlay] group of search result, drawn over tiles
+         */
+        private const val SEARCH_RESULT_GROUP_ID = Long.MAX_VALUE
+
+        private fun iconFor(placemark: PlacemarkSearchResult) = when {
+            placemark.flagged -> R.drawable.map_marker_favourite
+            placemark.note != null -> R.drawable.map_marker_note
+            else -> R.drawable.map_marker
+        }
+
         private fun colorFor(value: Int) =
             markerColors[abs(value) % markerColors.size]
     }
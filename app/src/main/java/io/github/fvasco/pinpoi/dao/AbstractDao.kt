@@ -8,16 +8,26 @@ import io.github.fvasco.pinpoi.util.assertDebug
 
 /**
  * Generic Dao.
+ * All daos of the same database share a single [DatabaseHolder].
  *
  * @author Francesco Vasco
  */
-abstract class AbstractDao(private val context: Context) {
+abstract class AbstractDao(context: Context) {
     var database: SQLiteDatabase? = null
         protected set
 
     @Volatile
     private var openCount: Int = 0
-    private var sqLiteOpenHelper: SQLiteOpenHelper = createSqLiteOpenHelper(context)
+    private val databaseHolder: DatabaseHolder =
+        (context.applicationContext ?: context).let { applicationContext ->
+            DatabaseHolder.get(applicationContext.packageName, createSqLiteOpenHelper(applicationContext))
+        }
+
+    /**
+     * Helper of the shared database, it may not be the one created by this dao
+     */
+    internal val sqLiteOpenHelper: SQLiteOpenHelper
+        get() = databaseHolder.sqLiteOpenHelper
 
     protected abstract fun createSqLiteOpenHelper(context: Context): SQLiteOpenHelper
 
@@ -28,7 +38,7 @@ abstract class AbstractDao(private val context: Context) {
 
         if (openCount == 0) {
             assertDebug(database == null)
-            database = sqLiteOpenHelper.writableDatabase
+            database = databaseHolder.acquire()
         }
         assertDebug(database != null)
         ++openCount
@@ -40,21 +50,24 @@ abstract class AbstractDao(private val context: Context) {
 
         --openCount
         if (openCount == 0) {
-            database?.close()
             database = null
+            databaseHolder.release()
         } else
             assertDebug(database != null)
 
     }
 
     /**
-     * Lock database, use [.reset] to unlock
+     * Lock database, use [.reset] to unlock.
+     * This dao must not be open, other daos have a timeout to release the database.
+     *
+     * @throws IllegalStateException if the database is still in use
      */
     @Synchronized
     fun lock() {
         check(openCount == 0) { "Database is open" }
 
-        sqLiteOpenHelper.close()
+        databaseHolder.lock()
         assertDebug(database == null)
         openCount = -1
     }
@@ -67,8 +80,7 @@ abstract class AbstractDao(private val context: Context) {
     @Synchronized
     fun reset() {
         check(openCount == -1) { "Dao not locked" }
-        sqLiteOpenHelper.close()
-        sqLiteOpenHelper = createSqLiteOpenHelper(context)
+        databaseHolder.unlock()
         openCount = 0
     }
 }
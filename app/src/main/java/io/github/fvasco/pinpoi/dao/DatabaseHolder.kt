@@ -0,0 +1,86 @@
+package io.github.fvasco.pinpoi.dao
+
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteOpenHelper
+import android.os.SystemClock
+
+/**
+ * Process-wide database, shared by all daos using the same database.
+ * The database stays open between dao usages so its connections and prepared statements are reused,
+ * write-ahead logging lets a pool of readers run along a writer.
+ *
+ * @author Francesco Vasco
+ */
+internal class DatabaseHolder(val sqLiteOpenHelper: SQLiteOpenHelper) {
+    private var database: SQLiteDatabase? = null
+    private var userCount = 0
+    private var locked = false
+
+    init {
+        sqLiteOpenHelper.setWriteAheadLoggingEnabled(true)
+    }
+
+    @Synchronized
+    fun acquire(): SQLiteDatabase {
+        check(!locked) { "Database locked" }
+        val database = database ?: sqLiteOpenHelper.writableDatabase.also { database ->
+            database.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE)
+            this.database = database
+        }
+        ++userCount
+        return database
+    }
+
+    @Synchronized
+    fun release() {
+        check(userCount > 0)
+        --userCount
+        if (userCount == 0) (this as Object).notifyAll()
+    }
+
+    /**
+     * Close database, checkpointing the write-ahead log into the database file.
+     * Current users have [LOCK_TIMEOUT_MILLIS] to release the database.
+     * Use [unlock] to allow a new [acquire].
+     *
+     * @throws IllegalStateException if the database is still in use
+     */
+    @Synchronized
+    fun lock() {
+        check(!locked) { "Database locked" }
+        val timeout = SystemClock.elapsedRealtime() + LOCK_TIMEOUT_MILLIS
+        while (userCount > 0) {
+            val wait = timeout - SystemClock.elapsedRealtime()
+            check(wait > 0) { "Database is open" }
+            (this as Object).wait(wait)
+        }
+        sqLiteOpenHelper.close()
+        database = null
+        locked = true
+    }
+
+    @Synchronized
+    fun unlock() {
+        check(locked) { "Dao not locked" }
+        locked = false
+    }
+
+    companion object {
+        /**
+         * Max wait of [lock]
+         */
+        private const val LOCK_TIMEOUT_MILLIS = 10_000L
+
+        private val DATABASE_HOLDERS = HashMap<String, DatabaseHolder>()
+
+        /**
+         * Get the holder of database, a new holder uses the given sqLiteOpenHelper
+         */
+        fun get(packageName: String, sqLiteOpenHelper: SQLiteOpenHelper): DatabaseHolder =
+            synchronized(DATABASE_HOLDERS) {
+                DATABASE_HOLDERS.getOrPut(packageName + ':' + sqLiteOpenHelper.databaseName) {
+                    DatabaseHolder(sqLiteOpenHelper)
+                }
+            }
+    }
+}
@@ -16,7 +16,7 @@ import java.util.Locale
 class PlacemarkCollectionDao(context: Context) : AbstractDao(context) {
 
     override fun createSqLiteOpenHelper(context: Context): SQLiteOpenHelper {
-        return PlacemarkCollectionDatabase(context)
+        return PlacemarkDatabase(context)
     }
 
     fun findPlacemarkCollectionById(id: Long): PlacemarkCollection? {
@@ -91,7 +91,32 @@ class PlacemarkCollectionDao(context: Context) : AbstractDao(context) {
         pc.id = id
     }
 
+    /**
+     * Insert placemark collection preserving its id, conflicting collections are replaced
+     */
+    fun replace(pc: PlacemarkCollection) {
+        val contentValues = placemarkCollectionToContentValues(pc)
+        contentValues.put("_ID", pc.id)
+        database!!.replaceOrThrow("PLACEMARK_COLLECTION", null, contentValues)
+    }
+
+    /**
+     * Update a placemark collection.
+     * **Side effect** HTTP validators are cleared if source or file format filter is changed,
+     * so the next update downloads the source again.
+     */
     fun update(pc: PlacemarkCollection) {
+        database!!.query(
+            "PLACEMARK_COLLECTION", arrayOf("source", "fileFormatFilter"),
+            "_ID=" + pc.id, null, null, null, null
+        ).use { cursor ->
+            if (cursor.moveToFirst()
+                && (cursor.getString(0) != pc.source.trim() || cursor.getString(1) != pc.fileFormatFilter.toString())
+            ) {
+                pc.httpEtag = ""
+                pc.httpLastModified = ""
+            }
+        }
         database!!.update(
             "PLACEMARK_COLLECTION",
             placemarkCollectionToContentValues(pc),
@@ -113,6 +138,12 @@ class PlacemarkCollectionDao(context: Context) : AbstractDao(context) {
         cv.put("fileFormatFilter", pc.fileFormatFilter.toString())
         cv.put("last_update", pc.lastUpdate)
         cv.put("poi_count", pc.poiCount)
+        cv.put("http_etag", pc.httpEtag)
+        cv.put("http_last_modified", pc.httpLastModified)
+        cv.putCoordinate("min_latitude", pc.minLatitude)
+        cv.putCoordinate("max_latitude", pc.maxLatitude)
+        cv.putCoordinate("min_longitude", pc.minLongitude)
+        cv.putCoordinate("max_longitude", pc.maxLongitude)
         return cv
     }
 
@@ -129,6 +160,19 @@ class PlacemarkCollectionDao(context: Context) : AbstractDao(context) {
             cursor.getString(7)
                 ?: FileFormatFilter.NONE.toString()
         )
+        pc.httpEtag = cursor.getString(8) ?: ""
+        pc.httpLastModified = cursor.getString(9) ?: ""
+        pc.minLatitude = cursor.getCoordinate(10)
+        pc.maxLatitude = cursor.getCoordinate(11)
+        pc.minLongitude = cursor.getCoordinate(12)
+        pc.maxLongitude = cursor.getCoordinate(13)
         return pc
     }
+
+    private fun ContentValues.putCoordinate(key: String, value: Float) {
+        if (value.isNaN()) putNull(key) else put(key, value)
+    }
+
+    private fun Cursor.getCoordinate(columnIndex: Int): Float =
+        if (isNull(columnIndex)) Float.NaN else getFloat(columnIndex)
 }
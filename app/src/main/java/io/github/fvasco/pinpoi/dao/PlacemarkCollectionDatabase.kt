@@ -5,28 +5,16 @@ import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
 
 /**
- * Placemark collection database
+ * Legacy placemark collection database, since [PlacemarkDatabase] version 5 placemark collections are stored there.
+ * Used only to migrate old databases.
  *
  * @author Francesco Vasco
  */
 internal class PlacemarkCollectionDatabase(context: Context) :
-    SQLiteOpenHelper(context, "PlacemarkCollection", null, /*version*/ 3) {
+    SQLiteOpenHelper(context, DATABASE_NAME, null, /*version*/ 5) {
 
     override fun onCreate(db: SQLiteDatabase) {
-        db.execSQL(
-            "CREATE TABLE PLACEMARK_COLLECTION (" +
-                    "_ID INTEGER primary key autoincrement," +
-                    "name TEXT NOT NULL," +
-                    "description TEXT NOT NULL," +
-                    "source TEXT NOT NULL," +
-                    "category TEXT NOT NULL," +
-                    "last_update INTEGER NOT NULL," +
-                    "poi_count INTEGER NOT NULL," +
-                    "fileFormatFilter TEXT NOT NULL" +
-                    ")"
-        )
-        db.execSQL("CREATE UNIQUE INDEX IDX_PLACEMARK_COLL_NAME ON PLACEMARK_COLLECTION (name)")
-        db.execSQL("CREATE UNIQUE INDEX IDX_PLACEMARK_COLL_CAT_NAME ON PLACEMARK_COLLECTION (category,name)")
+        createTable(db)
     }
 
     override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
@@ -36,5 +24,45 @@ internal class PlacemarkCollectionDatabase(context: Context) :
         if (oldVersion < 3) {
             db.execSQL("alter table PLACEMARK_COLLECTION add column fileFormatFilter TEXT")
         }
+        if (oldVersion < 4) {
+            db.execSQL("alter table PLACEMARK_COLLECTION add column http_etag TEXT NOT NULL DEFAULT ''")
+            db.execSQL("alter table PLACEMARK_COLLECTION add column http_last_modified TEXT NOT NULL DEFAULT ''")
+        }
+        if (oldVersion < 5) {
+            // bounding box is computed on next update
+            for (column in arrayOf("min_latitude", "max_latitude", "min_longitude", "max_longitude")) {
+                db.execSQL("alter table PLACEMARK_COLLECTION add column $column REAL")
+            }
+        }
+    }
+
+    companion object {
+        const val DATABASE_NAME = "PlacemarkCollection"
+
+        /**
+         * Create PLACEMARK_COLLECTION table
+         */
+        fun createTable(db: SQLiteDatabase) {
+            db.execSQL(
+                "CREATE TABLE PLACEMARK_COLLECTION (" +
+                        "_ID INTEGER primary key autoincrement," +
+                        "name TEXT NOT NULL," +
+                        "description TEXT NOT NULL," +
+                        "source TEXT NOT NULL," +
+                        "category TEXT NOT NULL," +
+                        "last_update INTEGER NOT NULL," +
+                        "poi_count INTEGER NOT NULL," +
+                        "fileFormatFilter TEXT NOT NULL," +
+                        "http_etag TEXT NOT NULL DEFAULT ''," +
+                        "http_last_modified TEXT NOT NULL DEFAULT ''," +
+                        "min_latitude REAL," +
+                        "max_latitude REAL," +
+                        "min_longitude REAL," +
+                        "max_longitude REAL" +
+                        ")"
+            )
+            db.execSQL("CREATE UNIQUE INDEX IDX_PLACEMARK_COLL_NAME ON PLACEMARK_COLLECTION (name)")
+            db.execSQL("CREATE UNIQUE INDEX IDX_PLACEMARK_COLL_CAT_NAME ON PLACEMARK_COLLECTION (category,name)")
+        }
     }
 }
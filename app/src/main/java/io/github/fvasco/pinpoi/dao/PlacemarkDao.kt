@@ -5,16 +5,22 @@ import android.content.Context
 import android.database.Cursor
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
+import android.location.Location
 import io.github.fvasco.pinpoi.model.Placemark
 import io.github.fvasco.pinpoi.model.PlacemarkAnnotation
 import io.github.fvasco.pinpoi.model.PlacemarkBase
+import io.github.fvasco.pinpoi.model.PlacemarkCluster
+import io.github.fvasco.pinpoi.model.PlacemarkCollection
 import io.github.fvasco.pinpoi.model.PlacemarkSearchResult
 import io.github.fvasco.pinpoi.util.Coordinates
 import io.github.fvasco.pinpoi.util.PlacemarkDistanceComparator
 import io.github.fvasco.pinpoi.util.distanceTo
-import java.util.SortedSet
-import java.util.TreeSet
+import java.util.PriorityQueue
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.abs
+import kotlin.math.cos
 import kotlin.math.roundToInt
+import kotlin.math.sqrt
 
 /**
  * Dao for [io.github.fvasco.pinpoi.model.Placemark]
@@ -30,6 +36,14 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
         return PlacemarkDatabase(context)
     }
 
+    private val placemarkDatabase: PlacemarkDatabase
+        get() = sqLiteOpenHelper as PlacemarkDatabase
+
+    /**
+     * Temporary tables are shared by all daos using the same connection, so staging table name is unique
+     */
+    private val stagingTable = "PLACEMARK_STAGING_" + STAGING_TABLE_COUNTER.incrementAndGet()
+
     fun isEmpty(): Boolean =
         database!!.query("PLACEMARK", arrayOf("_ID"), null, null, null, null, null, "1")
             .use { cursor -> cursor.isAfterLast }
@@ -37,7 +51,7 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
     fun findAllPlacemarkByCollectionId(collectionId: Long): List<Placemark> {
         database!!.query(
             "PLACEMARK", null,
-            "collection_id=$collectionId", null, null, null, "_ID"
+            "collection_id=?", arrayOf(collectionId.toString()), null, null, "_ID"
         ).use { cursor ->
             val res = ArrayList<Placemark>()
             cursor.moveToFirst()
@@ -55,6 +69,7 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
      * @param coordinates   the center of search
      * @param range         radius of search, in meters
      * @param collectionIds collection id filter
+     * @return nearest placemarks (at most [MAX_NEAR_RESULT]), sorted by distance
      */
     fun findAllPlacemarkNear(
         coordinates: Coordinates,
@@ -62,64 +77,234 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
         collectionIds: Collection<Long>,
         nameFilter: String? = null,
         onlyFavourite: Boolean = false
-    ): SortedSet<PlacemarkSearchResult> {
+    ): List<PlacemarkSearchResult> {
         require(collectionIds.isNotEmpty()) { "collection empty" }
         require(range > 0) { "range not valid $range" }
 
 
         // sql clause
-        // collection ids
-        val sql = StringBuilder(
-            "SELECT p._ID,p.latitude,p.longitude,p.name,pa.flag,pa.note,collection_id FROM PLACEMARK p" +
-                    " LEFT OUTER JOIN PLACEMARK_ANNOTATION pa USING(latitude,longitude)" +
-                    " WHERE p.collection_id in ("
-        )
         val whereArgs = ArrayList<String>()
-        val iterator = collectionIds.iterator()
-        sql.append(iterator.next().toString())
-        while (iterator.hasNext()) {
-            sql.append(',').append(iterator.next().toString())
+        val sql = createSearchQuery(collectionIds, whereArgs)
+        createWhereFilter(
+            coordinates, range, "p", placemarkDatabase.hasSpatialIndex, sql, whereArgs
+        )
+        appendSearchFilter(nameFilter, onlyFavourite, sql, whereArgs)
+
+        // max-heap, the head is the most distant placemark
+        val nearest =
+            PriorityQueue(MAX_NEAR_RESULT, PlacemarkDistanceComparator.reversed())
+        // coordinates in nearest
+        val nearestCoordinates = HashSet<Coordinates>()
+        val centerLatitude = coordinates.latitude.toDouble()
+        val centerLongitude = coordinates.longitude.toDouble()
+        // equirectangular pre-filter, use the smaller longitude scale in search band
+        val maxAbsLatitude =
+            (abs(centerLatitude) + Math.toDegrees(range / EARTH_RADIUS)).coerceAtMost(90.0)
+        val longitudeScale = cos(Math.toRadians(maxAbsLatitude))
+        val distanceResult = FloatArray(2)
+        database!!.rawQuery(sql.toString(), whereArgs.toTypedArray()).use { cursor ->
+            cursor.moveToFirst()
+            var maxDistance = range.toFloat()
+            while (!cursor.isAfterLast) {
+                val latitude = coordinateToFloat(cursor.getInt(1)).toDouble()
+                val longitude = coordinateToFloat(cursor.getInt(2)).toDouble()
+                var deltaLongitude = abs(longitude - centerLongitude)
+                if (deltaLongitude > 180.0) deltaLongitude = 360.0 - deltaLongitude
+                val deltaX = Math.toRadians(deltaLongitude) * longitudeScale
+                val deltaY = Math.toRadians(latitude - centerLatitude)
+                if (sqrt(deltaX * deltaX + deltaY * deltaY) * EARTH_RADIUS <= maxDistance * PREFILTER_TOLERANCE) {
+                    Location.distanceBetween(
+                        centerLatitude, centerLongitude, latitude, longitude, distanceResult
+                    )
+                    val distance = distanceResult[0]
+                    if ((distance < maxDistance || distance == maxDistance && nearest.size < MAX_NEAR_RESULT)
+                        // skip placemark with same coordinates
+                        && nearestCoordinates.add(Coordinates(latitude.toFloat(), longitude.toFloat()))
+                    ) {
+                        // ensure size limit, discard the most distant
+                        if (nearest.size == MAX_NEAR_RESULT) nearestCoordinates.remove(nearest.poll()!!.coordinates)
+                        nearest.add(
+                            cursorToPlacemarkSearchResult(cursor, distance, distanceResult[1])
+                        )
+                        // update search range to search closer
+                        if (nearest.size == MAX_NEAR_RESULT) maxDistance = nearest.peek()!!.distance
+                    }
+                }
+                cursor.moveToNext()
+            }
         }
-        sql.append(") AND ")
-        createWhereFilter(coordinates, range, "p", sql)
 
-        if (onlyFavourite) {
-            sql.append(" AND pa.flag=1")
-        }
+        val sorted = nearest.toTypedArray()
+        sorted.sortWith(PlacemarkDistanceComparator)
+        return sorted.asList()
+    }
 
-        if (!nameFilter.isNullOrBlank()) {
-            sql.append(" AND instr(upper(name),?)>0")
-            whereArgs.add(nameFilter.uppercase())
+    /**
+     * Search [Placemark] in a box, the box cannot cross meridian 180.
+     * Minimum coordinates are inclusive, maximum coordinates are exclusive
+     * except latitude 90 and longitude 180, so adjacent boxes never share a placemark.
+     *
+     * @param excludedIds placemark to skip
+     * @param limit max result count
+     * @return placemarks in box, without distance and bearing
+     */
+    fun findAllPlacemarkInBox(
+        latitudeMin: Double,
+        latitudeMax: Double,
+        longitudeMin: Double,
+        longitudeMax: Double,
+        collectionIds: Collection<Long>,
+        nameFilter: String? = null,
+        onlyFavourite: Boolean = false,
+        excludedIds: Collection<Long> = emptyList(),
+        limit: Int
+    ): List<PlacemarkSearchResult> {
+        require(collectionIds.isNotEmpty()) { "collection empty" }
+        val box = SearchGridBox(latitudeMin, latitudeMax, longitudeMin, longitudeMax, 1)
+
+        val whereArgs = ArrayList<String>()
+        val sql = createSearchQuery(collectionIds, whereArgs)
+        appendBoxFilter(box, excludedIds, sql, whereArgs)
+        appendSearchFilter(nameFilter, onlyFavourite, sql, whereArgs)
+        sql.append(" LIMIT ?")
+        whereArgs.add(limit.toString())
+
+        database!!.rawQuery(sql.toString(), whereArgs.toTypedArray()).use { cursor ->
+            val res = ArrayList<PlacemarkSearchResult>(cursor.count)
+            cursor.moveToFirst()
+            while (!cursor.isAfterLast) {
+                res.add(cursorToPlacemarkSearchResult(cursor, Float.NaN, Float.NaN))
+                cursor.moveToNext()
+            }
+            return res
         }
+    }
+
+    /**
+     * Group [Placemark] in a box by a grid of `gridSize`x`gridSize` cells, each not empty cell is a cluster.
+     * Box limits are the same of [findAllPlacemarkInBox], there is no limit on placemark count.
+     *
+     * @param excludedIds placemark to skip
+     * @return clusters in box
+     */
+    fun findAllPlacemarkClusterInBox(
+        latitudeMin: Double,
+        latitudeMax: Double,
+        longitudeMin: Double,
+        longitudeMax: Double,
+        gridSize: Int,
+        collectionIds: Collection<Long>,
+        nameFilter: String? = null,
+        onlyFavourite: Boolean = false,
+        excludedIds: Collection<Long> = emptyList()
+    ): List<PlacemarkCluster> {
+        require(collectionIds.isNotEmpty()) { "collection empty" }
+        require(gridSize > 0) { "grid size not valid $gridSize" }
+        val box = SearchGridBox(latitudeMin, latitudeMax, longitudeMin, longitudeMax, gridSize)
+
+        // placemark columns are bare columns, they are valid for single placemark clusters
+        val whereArgs = ArrayList<String>()
+        val sql = createSearchQuery(
+            collectionIds, whereArgs,
+            ",count(*),avg(p.latitude),avg(p.longitude)" +
+                    ",min(p.latitude),max(p.latitude),min(p.longitude),max(p.longitude)"
+        )
+        appendBoxFilter(box, excludedIds, sql, whereArgs)
+        appendSearchFilter(nameFilter, onlyFavourite, sql, whereArgs)
+        // integer division
+        sql.append(" GROUP BY (p.latitude-CAST(? AS INTEGER))/CAST(? AS INTEGER)")
+            .append(",(p.longitude-CAST(? AS INTEGER))/CAST(? AS INTEGER)")
+        whereArgs.add(box.latitudeMin.toString())
+        whereArgs.add(box.latitudeCellSize.toString())
+        whereArgs.add(box.longitudeMin.toString())
+        whereArgs.add(box.longitudeCellSize.toString())
 
-        val locationComparator = PlacemarkDistanceComparator(coordinates)
-        val res = TreeSet(locationComparator)
         database!!.rawQuery(sql.toString(), whereArgs.toTypedArray()).use { cursor ->
+            val res = ArrayList<PlacemarkCluster>(cursor.count)
             cursor.moveToFirst()
-            var maxDistance = range
             while (!cursor.isAfterLast) {
-                val p = cursorToPlacemarkSearchResult(cursor)
-                if (coordinates.distanceTo(p.coordinates) <= maxDistance) {
-                    res.add(p)
-                    // ensure size limit, discard the most distant
-                    if (res.size > MAX_NEAR_RESULT) {
-                        val placemarkToDiscard = res.last()
-                        res.remove(placemarkToDiscard)
-                        // update search range to search closer
-                        maxDistance = coordinates.distanceTo(res.last().coordinates).toDouble()
-                    }
-                }
+                val size = cursor.getInt(8)
+                res.add(
+                    PlacemarkCluster(
+                        coordinates = Coordinates(
+                            (cursor.getDouble(9) / COORDINATE_MULTIPLIER).toFloat(),
+                            (cursor.getDouble(10) / COORDINATE_MULTIPLIER).toFloat()
+                        ),
+                        size = size,
+                        latitudeMin = coordinateToFloat(cursor.getInt(11)),
+                        latitudeMax = coordinateToFloat(cursor.getInt(12)),
+                        longitudeMin = coordinateToFloat(cursor.getInt(13)),
+                        longitudeMax = coordinateToFloat(cursor.getInt(14)),
+                        placemark =
+                            if (size == 1) cursorToPlacemarkSearchResult(cursor, Float.NaN, Float.NaN)
+                            else null
+                    )
+                )
                 cursor.moveToNext()
             }
+            return res
+        }
+    }
+
+    private fun appendBoxFilter(
+        box: SearchGridBox,
+        excludedIds: Collection<Long>,
+        sql: StringBuilder,
+        whereArgs: MutableList<String>
+    ) {
+        if (placemarkDatabase.hasSpatialIndex) {
+            sql.append("p._ID IN (")
+            appendSpatialIndexFilter(
+                box.latitudeMin, box.latitudeMax, box.longitudeMin, box.longitudeMax, sql, whereArgs
+            )
+            sql.append(')')
+        } else {
+            sql.append("p.latitude between ? AND ? AND p.longitude between ? AND ?")
+            whereArgs.add(box.latitudeMin.toString())
+            whereArgs.add(box.latitudeMax.toString())
+            whereArgs.add(box.longitudeMin.toString())
+            whereArgs.add(box.longitudeMax.toString())
+        }
+        if (excludedIds.isNotEmpty()) {
+            sql.append(" AND p._ID NOT IN (")
+            appendArgs(excludedIds, sql, whereArgs)
+            sql.append(')')
+        }
+    }
+
+    /**
+     * Append name and favourite filter of a search
+     */
+    private fun appendSearchFilter(
+        nameFilter: String?,
+        onlyFavourite: Boolean,
+        sql: StringBuilder,
+        whereArgs: MutableList<String>
+    ) {
+        if (onlyFavourite) {
+            sql.append(" AND pa.flag=1")
+        }
+
+        if (!nameFilter.isNullOrBlank()) {
+            // trigrams are made of characters, not UTF-16 chars
+            if (nameFilter.codePointCount(0, nameFilter.length) >= PlacemarkDatabase.TEXT_INDEX_MIN_LENGTH
+                && placemarkDatabase.hasTextIndex
+            ) {
+                // trigram phrase, match any substring
+                sql.append(" AND p._ID IN (SELECT rowid FROM PLACEMARK_FTS WHERE PLACEMARK_FTS MATCH ?)")
+                whereArgs.add('"' + nameFilter.replace("\"", "\"\"") + '"')
+            } else {
+                sql.append(" AND instr(upper(p.name),?)>0")
+                whereArgs.add(nameFilter.uppercase())
+            }
         }
-        return res
     }
 
     fun getPlacemark(id: Long): Placemark? {
         if (id <= 0) return null
         database!!.query(
             "PLACEMARK", null,
-            "_ID=$id", null, null, null, null
+            "_ID=?", arrayOf(id.toString()), null, null, null
         ).use { cursor ->
             cursor.moveToFirst()
             return if (cursor.isAfterLast) null else cursorToPlacemark(cursor)
@@ -137,8 +322,8 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
         database!!.query(
             "PLACEMARK_ANNOTATION",
             null,
-            "latitude=" + coordinateToInt(latitude) + " AND longitude=" + coordinateToInt(longitude),
-            null,
+            "latitude=? AND longitude=?",
+            arrayOf(coordinateToInt(latitude).toString(), coordinateToInt(longitude).toString()),
             null,
             null,
             null
@@ -152,20 +337,39 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
         }
     }
 
+    fun findAllPlacemarkAnnotation(): List<PlacemarkAnnotation> {
+        database!!.query(
+            "PLACEMARK_ANNOTATION", null, null, null, null, null, "_ID"
+        ).use { cursor ->
+            val res = ArrayList<PlacemarkAnnotation>()
+            cursor.moveToFirst()
+            while (!cursor.isAfterLast) {
+                res.add(cursorToPlacemarkAnnotation(cursor))
+                cursor.moveToNext()
+            }
+            return res
+        }
+    }
+
+    fun deleteAllPlacemarkAnnotation() {
+        database!!.delete("PLACEMARK_ANNOTATION", null, null)
+    }
+
     fun update(placemarkAnnotation: PlacemarkAnnotation) {
-        val whereClause =
-            "latitude=${coordinateToInt(placemarkAnnotation.coordinates.latitude)} AND longitude=${
-                coordinateToInt(placemarkAnnotation.coordinates.longitude)
-            }"
+        val whereClause = "latitude=? AND longitude=?"
+        val whereArgs = arrayOf(
+            coordinateToInt(placemarkAnnotation.coordinates.latitude).toString(),
+            coordinateToInt(placemarkAnnotation.coordinates.longitude).toString()
+        )
         if (placemarkAnnotation.note.isBlank() && !placemarkAnnotation.flagged) {
             database!!.delete(
                 "PLACEMARK_ANNOTATION",
                 whereClause,
-                null
+                whereArgs
             )
         } else {
             val contentValues = placemarkAnnotationToContentValues(placemarkAnnotation)
-            val count = database!!.update("PLACEMARK_ANNOTATION", contentValues, whereClause, null)
+            val count = database!!.update("PLACEMARK_ANNOTATION", contentValues, whereClause, whereArgs)
             if (count == 0) {
                 database!!.insertOrThrow("PLACEMARK_ANNOTATION", null, contentValues)
             }
@@ -180,8 +384,143 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
         return id > 0
     }
 
+    /**
+     * Insert placemarks reusing a single compiled statement, conflicting placemarks are ignored
+     *
+     * @return inserted placemark count
+     */
+    fun insert(placemarks: Collection<Placemark>): Int = insert("PLACEMARK", placemarks)
+
+    /**
+     * Create an empty staging table, fill it using [insertStaging] then apply it with [mergeStaging].
+     * Staging does not require a transaction, so placemarks can be staged while other writers run,
+     * each dao has its own staging table.
+     * Use [dropStaging] to discard it.
+     */
+    fun createStaging() {
+        val database = database!!
+        database.execSQL(
+            "CREATE TEMP TABLE IF NOT EXISTS $stagingTable (" +
+                    "latitude INTEGER NOT NULL," +
+                    "longitude INTEGER NOT NULL," +
+                    "name TEXT NOT NULL," +
+                    "description TEXT NOT NULL," +
+                    "collection_id INTEGER NOT NULL," +
+                    "PRIMARY KEY (latitude,longitude)" +
+                    ")"
+        )
+        database.execSQL("DELETE FROM $stagingTable")
+    }
+
+    /**
+     * Insert placemarks in staging table, placemarks with same coordinates are ignored.
+     * Placemarks are inserted in a short transaction.
+     *
+     * @return staged placemark count
+     * @see createStaging
+     */
+    fun insertStaging(placemarks: Collection<Placemark>): Int {
+        val database = database!!
+        database.beginTransactionNonExclusive()
+        try {
+            val count = insert(stagingTable, placemarks)
+            database.setTransactionSuccessful()
+            return count
+        } finally {
+            database.endTransaction()
+        }
+    }
+
+    /**
+     * Drop staging table, if present
+     *
+     * @see createStaging
+     */
+    fun dropStaging() {
+        database!!.execSQL("DROP TABLE IF EXISTS $stagingTable")
+    }
+
+    /**
+     * Replace collection's placemarks with staged ones, unchanged placemarks are not touched.
+     * Use it in a transaction, staging table is dropped.
+     *
+     * @see createStaging
+     */
+    fun mergeStaging(collectionId: Long): MergeResult {
+        val database = database!!
+        val matchStaging =
+            "s.latitude=PLACEMARK.latitude AND s.longitude=PLACEMARK.longitude"
+        val removed = database.delete(
+            "PLACEMARK",
+            "collection_id=? AND NOT EXISTS (SELECT 1 FROM $stagingTable s WHERE $matchStaging)",
+            arrayOf(collectionId.toString())
+        )
+        val changed = database.compileStatement(
+            "UPDATE PLACEMARK SET" +
+                    " name=(SELECT s.name FROM $stagingTable s WHERE $matchStaging)," +
+                    " description=(SELECT s.description FROM $stagingTable s WHERE $matchStaging)" +
+                    " WHERE collection_id=? AND EXISTS (SELECT 1 FROM $stagingTable s" +
+                    " WHERE $matchStaging AND (s.name<>PLACEMARK.name OR s.description<>PLACEMARK.description))"
+        ).use { statement ->
+            statement.bindLong(1, collectionId)
+            statement.executeUpdateDelete()
+        }
+        val added = database.compileStatement(
+            "INSERT INTO PLACEMARK (latitude,longitude,name,description,collection_id)" +
+                    " SELECT latitude,longitude,name,description,?1 FROM $stagingTable s" +
+                    " WHERE NOT EXISTS (SELECT 1 FROM PLACEMARK WHERE collection_id=?1 AND $matchStaging)"
+        ).use { statement ->
+            statement.bindLong(1, collectionId)
+            statement.executeUpdateDelete()
+        }
+        database.execSQL("DROP TABLE $stagingTable")
+        return MergeResult(added = added, changed = changed, removed = removed)
+    }
+
+    /**
+     * Set the bounding box of collection's placemarks, an empty collection has no bounding box.
+     * **Side effect** update placemark collection
+     */
+    fun updateBounds(placemarkCollection: PlacemarkCollection) {
+        database!!.rawQuery(
+            "SELECT min(latitude),max(latitude),min(longitude),max(longitude) FROM PLACEMARK" +
+                    " WHERE collection_id=?",
+            arrayOf(placemarkCollection.id.toString())
+        ).use { cursor ->
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                placemarkCollection.minLatitude = coordinateToFloat(cursor.getInt(0))
+                placemarkCollection.maxLatitude = coordinateToFloat(cursor.getInt(1))
+                placemarkCollection.minLongitude = coordinateToFloat(cursor.getInt(2))
+                placemarkCollection.maxLongitude = coordinateToFloat(cursor.getInt(3))
+            } else {
+                placemarkCollection.minLatitude = Float.NaN
+                placemarkCollection.maxLatitude = Float.NaN
+                placemarkCollection.minLongitude = Float.NaN
+                placemarkCollection.maxLongitude = Float.NaN
+            }
+        }
+    }
+
+    private fun insert(table: String, placemarks: Collection<Placemark>): Int {
+        database!!.compileStatement(
+            "INSERT OR IGNORE INTO $table (latitude,longitude,name,description,collection_id) VALUES (?,?,?,?,?)"
+        ).use { statement ->
+            var count = 0
+            for (p in placemarks) {
+                val c = p.coordinates
+                statement.bindLong(1, coordinateToInt(c.latitude).toLong())
+                statement.bindLong(2, coordinateToInt(c.longitude).toLong())
+                statement.bindString(3, p.name.trim())
+                statement.bindString(4, p.description.trim())
+                statement.bindLong(5, p.collectionId)
+                if (statement.executeInsert() > 0) ++count
+            }
+            return count
+        }
+    }
+
     fun deleteByCollectionId(collectionId: Long) {
-        database!!.delete("PLACEMARK", "collection_id=$collectionId", null)
+        database!!.delete("PLACEMARK", "collection_id=?", arrayOf(collectionId.toString()))
     }
 
     private fun placemarkToContentValues(p: Placemark): ContentValues {
@@ -217,7 +556,7 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
             collectionId = cursor.getLong(5)
         )
 
-    private fun cursorToPlacemarkSearchResult(cursor: Cursor) =
+    private fun cursorToPlacemarkSearchResult(cursor: Cursor, distance: Float, bearing: Float) =
         PlacemarkSearchResult(
             id = cursor.getLong(0),
             coordinates = Coordinates(
@@ -227,7 +566,10 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
             name = cursor.getString(3),
             note = cursor.getString(5)?.takeIf(String::isNotBlank),
             flagged = cursor.getInt(4) != 0,
-            collectionId = cursor.getLong(6)
+            collectionId = cursor.getLong(6),
+            collectionName = cursor.getString(7) ?: "",
+            distance = distance,
+            bearing = bearing
         )
 
     private fun cursorToPlacemarkAnnotation(cursor: Cursor) =
@@ -241,6 +583,11 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
             flagged = cursor.getInt(4) != 0
         )
 
+    /**
+     * Placemark changes applied by [mergeStaging]
+     */
+    data class MergeResult(val added: Int, val changed: Int, val removed: Int)
+
     companion object {
 
         /**
@@ -248,6 +595,18 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
          */
         private const val MAX_NEAR_RESULT = 300
 
+        private val STAGING_TABLE_COUNTER = AtomicInteger()
+
+        /**
+         * Mean earth radius, in meters
+         */
+        private const val EARTH_RADIUS = 6371008.8
+
+        /**
+         * Tolerance of the equirectangular approximation against the ellipsoidal distance
+         */
+        private const val PREFILTER_TOLERANCE = 1.1f
+
         // 2^20
         private const val COORDINATE_MULTIPLIER = 1048576f
 
@@ -275,44 +634,195 @@ class PlacemarkDao(context: Context) : AbstractDao(context) {
             return (f * COORDINATE_MULTIPLIER).roundToInt()
         }
 
+        /**
+         * Create a [PlacemarkSearchResult] query filtered by collection ids,
+         * other filters must be appended.
+         * Values are bound as arguments, so the query text is the same for the same count of collections
+         * and its compiled statement is reused.
+         */
+        private fun createSearchQuery(
+            collectionIds: Collection<Long>,
+            whereArgs: MutableList<String>,
+            extraColumns: String = ""
+        ): StringBuilder {
+            val sql = StringBuilder(
+                "SELECT p._ID,p.latitude,p.longitude,p.name,pa.flag,pa.note,p.collection_id,pc.name" +
+                        extraColumns + " FROM PLACEMARK p" +
+                        " LEFT OUTER JOIN PLACEMARK_ANNOTATION pa USING(latitude,longitude)" +
+                        " LEFT OUTER JOIN PLACEMARK_COLLECTION pc ON pc._ID=p.collection_id" +
+                        " WHERE p.collection_id in ("
+            )
+            appendArgs(collectionIds, sql, whereArgs)
+            sql.append(") AND ")
+            return sql
+        }
+
+        /**
+         * Append a placeholder list for values
+         */
+        private fun appendArgs(values: Collection<Long>, sql: StringBuilder, whereArgs: MutableList<String>) {
+            values.joinTo(sql, ",") { "?" }
+            values.mapTo(whereArgs) { it.toString() }
+        }
+
+        /**
+         * Check if the collection's bounding box intersects the search area of [findAllPlacemarkNear],
+         * a collection without bounding box always intersects
+         */
+        fun isCollectionNear(
+            placemarkCollection: PlacemarkCollection,
+            coordinates: Coordinates,
+            range: Double
+        ): Boolean {
+            if (!placemarkCollection.hasBounds) return true
+            val searchBox = SearchBox(coordinates, range)
+            if (placemarkCollection.maxLatitude < searchBox.latitudeMin
+                || placemarkCollection.minLatitude > searchBox.latitudeMax
+            ) return false
+            // check the other side of meridian 180, too
+            return doubleArrayOf(0.0, 360.0, -360.0).any { shift ->
+                placemarkCollection.maxLongitude >= searchBox.longitudeMin + shift
+                        && placemarkCollection.minLongitude <= searchBox.longitudeMax + shift
+            }
+        }
+
         /**
          * Append coordinates filter in stringBuilder sql clause
+         *
+         * @param spatialIndex use PLACEMARK_RTREE to look up placemark ids
          */
         private fun createWhereFilter(
             coordinates: Coordinates,
             range: Double,
             table: String,
-            stringBuilder: StringBuilder
+            spatialIndex: Boolean,
+            stringBuilder: StringBuilder,
+            whereArgs: MutableList<String>
         ) {
-            // calculate "square" of search
-            val shiftY =
-                coordinates.copy(latitude = coordinates.latitude + if (coordinates.latitude > 0) -1 else 1)
-            val scaleY = coordinates.distanceTo(shiftY)
-            val shiftX =
-                coordinates.copy(longitude = coordinates.longitude + if (coordinates.longitude > 0) -1 else 1)
-            val scaleX = coordinates.distanceTo(shiftX)
+            val searchBox = SearchBox(coordinates, range)
+            val latitudeMin = coordinateToInt(searchBox.latitudeMin)
+            val latitudeMax = coordinateToInt(searchBox.latitudeMax)
+            val longitudeMin = searchBox.longitudeMin
+            val longitudeMax = searchBox.longitudeMax
+
+            if (spatialIndex) {
+                stringBuilder.append(table).append("._ID IN (")
+                appendSpatialIndexFilter(
+                    latitudeMin, latitudeMax,
+                    coordinateToInt(longitudeMin), coordinateToInt(longitudeMax),
+                    stringBuilder, whereArgs
+                )
+                // fix for meridian 180, search the other side in a separate box
+                if (longitudeMin < -180.0) {
+                    stringBuilder.append(" UNION ALL ")
+                    appendSpatialIndexFilter(
+                        latitudeMin, latitudeMax,
+                        coordinateToInt(longitudeMin + 360.0), coordinateToInt(180.0),
+                        stringBuilder, whereArgs
+                    )
+                } else if (longitudeMax > 180.0) {
+                    stringBuilder.append(" UNION ALL ")
+                    appendSpatialIndexFilter(
+                        latitudeMin, latitudeMax,
+                        coordinateToInt(-180.0), coordinateToInt(longitudeMax - 360.0),
+                        stringBuilder, whereArgs
+                    )
+                }
+                stringBuilder.append(')')
+                return
+            }
 
             // latitude
-            stringBuilder.append(table).append(".latitude between ")
-                .append(coordinateToInt(coordinates.latitude - range / scaleY).toString())
-                .append(" AND ")
-                .append(coordinateToInt(coordinates.latitude + range / scaleY).toString())
+            stringBuilder.append(table).append(".latitude between ? AND ?")
+            whereArgs.add(latitudeMin.toString())
+            whereArgs.add(latitudeMax.toString())
 
             // longitude
-            val longitudeMin = coordinates.longitude - range / scaleX
-            val longitudeMax = coordinates.longitude + range / scaleX
-            stringBuilder.append(" AND (").append(table).append(".longitude between ")
-                .append(coordinateToInt(longitudeMin).toString()).append(" AND ")
-                .append(coordinateToInt(longitudeMax).toString())
+            stringBuilder.append(" AND (").append(table).append(".longitude between ? AND ?")
+            whereArgs.add(coordinateToInt(longitudeMin).toString())
+            whereArgs.add(coordinateToInt(longitudeMax).toString())
             // fix for meridian 180
             if (longitudeMin < -180.0) {
-                stringBuilder.append(" OR ").append(table).append(".longitude >=")
-                    .append(coordinateToInt(longitudeMin + 360.0).toString())
+                stringBuilder.append(" OR ").append(table).append(".longitude >=?")
+                whereArgs.add(coordinateToInt(longitudeMin + 360.0).toString())
             } else if (longitudeMax > 180.0) {
-                stringBuilder.append(" OR ").append(table).append(".longitude <=")
-                    .append(coordinateToInt(longitudeMax - 360.0).toString())
+                stringBuilder.append(" OR ").append(table).append(".longitude <=?")
+                whereArgs.add(coordinateToInt(longitudeMax - 360.0).toString())
             }
             stringBuilder.append(')')
         }
+
+        /**
+         * A box split in a grid, in db coordinates.
+         * Limits are inclusive, see [findAllPlacemarkInBox].
+         */
+        private class SearchGridBox(
+            latitudeMin: Double,
+            latitudeMax: Double,
+            longitudeMin: Double,
+            longitudeMax: Double,
+            gridSize: Int
+        ) {
+            val latitudeMin = coordinateToInt(latitudeMin.coerceAtLeast(-90.0))
+            val latitudeMax =
+                if (latitudeMax >= 90.0) coordinateToInt(90.0) else coordinateToInt(latitudeMax) - 1
+            val longitudeMin = coordinateToInt(longitudeMin.coerceAtLeast(-180.0))
+            val longitudeMax =
+                if (longitudeMax >= 180.0) coordinateToInt(180.0) else coordinateToInt(longitudeMax) - 1
+            val latitudeCellSize = (this.latitudeMax - this.latitudeMin) / gridSize + 1
+            val longitudeCellSize = (this.longitudeMax - this.longitudeMin) / gridSize + 1
+
+            init {
+                require(this.latitudeMin <= this.latitudeMax && this.longitudeMin <= this.longitudeMax) {
+                    "box not valid"
+                }
+            }
+        }
+
+        /**
+         * The "square" of search, longitude limits may exceed meridian 180
+         */
+        private class SearchBox(coordinates: Coordinates, range: Double) {
+            val latitudeMin: Double
+            val latitudeMax: Double
+            val longitudeMin: Double
+            val longitudeMax: Double
+
+            init {
+                val shiftY =
+                    coordinates.copy(latitude = coordinates.latitude + if (coordinates.latitude > 0) -1 else 1)
+                val scaleY = coordinates.distanceTo(shiftY)
+                val shiftX =
+                    coordinates.copy(longitude = coordinates.longitude + if (coordinates.longitude > 0) -1 else 1)
+                val scaleX = coordinates.distanceTo(shiftX)
+
+                latitudeMin = coordinates.latitude - range / scaleY
+                latitudeMax = coordinates.latitude + range / scaleY
+                longitudeMin = coordinates.longitude - range / scaleX
+                longitudeMax = coordinates.longitude + range / scaleX
+            }
+        }
+
+        /**
+         * Append a R*Tree box query, every constraint is solved by the index
+         */
+        private fun appendSpatialIndexFilter(
+            latitudeMin: Int,
+            latitudeMax: Int,
+            longitudeMin: Int,
+            longitudeMax: Int,
+            stringBuilder: StringBuilder,
+            whereArgs: MutableList<String>
+        ) {
+            // virtual table columns have no affinity, bind numbers
+            stringBuilder.append("SELECT _ID FROM PLACEMARK_RTREE WHERE max_lat>=CAST(? AS INTEGER)")
+                .append(" AND min_lat<=CAST(? AS INTEGER)")
+                .append(" AND max_lon>=CAST(? AS INTEGER)")
+                .append(" AND min_lon<=CAST(? AS INTEGER)")
+            whereArgs.add(latitudeMin.toString())
+            whereArgs.add(latitudeMax.toString())
+            whereArgs.add(longitudeMin.toString())
+            whereArgs.add(longitudeMax.toString())
+        }
     }
 }
@@ -1,16 +1,40 @@
 package io.github.fvasco.pinpoi.dao
 
+import android.content.ContentValues
 import android.content.Context
+import android.database.DatabaseUtils
+import android.database.SQLException
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
+import android.util.Log
+import io.github.fvasco.pinpoi.importer.FileFormatFilter
 
 /**
- * POI database
+ * POI database, it contains placemarks and placemark collections
 
  * @author Francesco Vasco
  */
-internal class PlacemarkDatabase(context: Context) :
-    SQLiteOpenHelper(context, "Placemark", null, /*version*/ 2) {
+internal class PlacemarkDatabase(private val context: Context) :
+    SQLiteOpenHelper(context, "Placemark", null, /*version*/ 7) {
+
+    /**
+     * [PLACEMARK_RTREE][createSpatialIndex] is present and usable, checked on database open
+     */
+    @Volatile
+    var hasSpatialIndex = false
+        private set
+
+    /**
+     * [PLACEMARK_FTS][createTextIndex] is present and usable, checked on database open
+     */
+    @Volatile
+    var hasTextIndex = false
+        private set
+
+    /**
+     * Legacy placemark collections are copied in the running upgrade, the legacy database is deleted on commit
+     */
+    private var legacyMigrated = false
 
     override fun onCreate(db: SQLiteDatabase) {
         // Placemark table
@@ -37,6 +61,13 @@ internal class PlacemarkDatabase(context: Context) :
                     ")"
         )
         db.execSQL("CREATE UNIQUE INDEX IDX_PLACEMARK_ANN_COORD ON PLACEMARK_ANNOTATION (latitude,longitude)")
+
+        createSpatialIndex(db)
+        createTextIndex(db)
+
+        // PlacemarkCollection table
+        PlacemarkCollectionDatabase.createTable(db)
+        migrateLegacyPlacemarkCollection(db)
     }
 
     override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
@@ -44,5 +75,203 @@ internal class PlacemarkDatabase(context: Context) :
             db.execSQL("UPDATE PLACEMARK SET description='' where description is null")
             db.execSQL("UPDATE PLACEMARK_ANNOTATION SET note='' where note is null")
         }
+        if (oldVersion < 3) {
+            createSpatialIndex(db)
+        }
+        if (oldVersion < 4) {
+            createTextIndex(db)
+        }
+        if (oldVersion < 5) {
+            PlacemarkCollectionDatabase.createTable(db)
+            migrateLegacyPlacemarkCollection(db)
+        }
+        if (oldVersion in 3..5) {
+            // R*Tree stored rounded float coordinates
+            dropIndex(db, "PLACEMARK_RTREE", SPATIAL_INDEX_TRIGGERS)
+            createSpatialIndex(db)
+        }
+        if (oldVersion in 4..6) {
+            // text index contained description
+            dropIndex(db, "PLACEMARK_FTS", TEXT_INDEX_TRIGGERS)
+            createTextIndex(db)
+        }
+    }
+
+    override fun onOpen(db: SQLiteDatabase) {
+        // legacy database is migrated, onCreate and onUpgrade are committed
+        if (legacyMigrated) {
+            legacyMigrated = false
+            Log.i(PlacemarkDatabase::class.java.simpleName, "Delete legacy database")
+            context.deleteDatabase(PlacemarkCollectionDatabase.DATABASE_NAME)
+        }
+        hasSpatialIndex = checkIndex(db, "PLACEMARK_RTREE", SPATIAL_INDEX_TRIGGERS) { createSpatialIndex(db) }
+        hasTextIndex = checkIndex(db, "PLACEMARK_FTS", TEXT_INDEX_TRIGGERS) { createTextIndex(db) }
+    }
+
+    /**
+     * Check that an optional index works with this SQLite build, a restored backup may contain an index
+     * created by a newer one.
+     * An unusable index is dropped with its triggers, so placemark changes do not fail, then it is created again
+     * if this SQLite build allows it.
+     *
+     * @return true if index is present and usable
+     */
+    private fun checkIndex(db: SQLiteDatabase, table: String, triggers: List<String>, create: () -> Unit): Boolean {
+        if (!hasTable(db, table)) return false
+        if (isUsable(db, table) && triggers.all { hasTrigger(db, it) }) return true
+        if (db.isReadOnly) return false
+
+        Log.w(PlacemarkDatabase::class.java.simpleName, "Index $table not usable, drop it")
+        db.beginTransaction()
+        try {
+            dropIndex(db, table, triggers)
+            create()
+            db.setTransactionSuccessful()
+        } finally {
+            db.endTransaction()
+        }
+        return isUsable(db, table) && triggers.all { hasTrigger(db, it) }
+    }
+
+    /**
+     * Drop an optional index with its triggers
+     */
+    private fun dropIndex(db: SQLiteDatabase, table: String, triggers: List<String>) {
+        for (trigger in triggers) db.execSQL("DROP TRIGGER IF EXISTS $trigger")
+        try {
+            db.execSQL("DROP TABLE IF EXISTS $table")
+        } catch (e: SQLException) {
+            // module not available, table is ignored
+            Log.w(PlacemarkDatabase::class.java.simpleName, "Cannot drop $table", e)
+        }
+    }
+
+    /**
+     * Copy placemark collections from [PlacemarkCollectionDatabase], if present
+     */
+    private fun migrateLegacyPlacemarkCollection(db: SQLiteDatabase) {
+        if (!context.getDatabasePath(PlacemarkCollectionDatabase.DATABASE_NAME).exists()) return
+        Log.i(PlacemarkDatabase::class.java.simpleName, "Migrate legacy placemark collections")
+        val placemarkCollectionDatabase = PlacemarkCollectionDatabase(context)
+        try {
+            placemarkCollectionDatabase.readableDatabase
+                .query("PLACEMARK_COLLECTION", null, null, null, null, null, null)
+                .use { cursor ->
+                    val contentValues = ContentValues()
+                    while (cursor.moveToNext()) {
+                        contentValues.clear()
+                        DatabaseUtils.cursorRowToContentValues(cursor, contentValues)
+                        // column added as nullable in legacy version 3
+                        if (contentValues.getAsString("fileFormatFilter") == null) {
+                            contentValues.put("fileFormatFilter", FileFormatFilter.NONE.name)
+                        }
+                        db.insertOrThrow("PLACEMARK_COLLECTION", null, contentValues)
+                    }
+                }
+        } finally {
+            placemarkCollectionDatabase.close()
+        }
+        legacyMigrated = true
+    }
+
+    /**
+     * Create the R*Tree index on placemark coordinates, triggers keep it aligned to PLACEMARK.
+     * Coordinates are stored as 32 bit integers, like in PLACEMARK, so index limits are exact.
+     * The index is optional: if the SQLite build lacks the R*Tree module the search falls back to a plain range scan.
+     */
+    private fun createSpatialIndex(db: SQLiteDatabase) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE PLACEMARK_RTREE USING rtree_i32(_ID,min_lat,max_lat,min_lon,max_lon)")
+        } catch (e: SQLException) {
+            Log.w(PlacemarkDatabase::class.java.simpleName, "R*Tree not available", e)
+            return
+        }
+        db.execSQL(
+            "INSERT INTO PLACEMARK_RTREE SELECT _ID,latitude,latitude,longitude,longitude FROM PLACEMARK"
+        )
+        db.execSQL(
+            "CREATE TRIGGER TRG_PLACEMARK_RTREE_INS AFTER INSERT ON PLACEMARK BEGIN" +
+                    " INSERT INTO PLACEMARK_RTREE VALUES (new._ID,new.latitude,new.latitude,new.longitude,new.longitude);" +
+                    " END"
+        )
+        db.execSQL(
+            "CREATE TRIGGER TRG_PLACEMARK_RTREE_UPD AFTER UPDATE OF latitude,longitude ON PLACEMARK BEGIN" +
+                    " UPDATE PLACEMARK_RTREE SET min_lat=new.latitude,max_lat=new.latitude,min_lon=new.longitude,max_lon=new.longitude" +
+                    " WHERE _ID=old._ID;" +
+                    " END"
+        )
+        db.execSQL(
+            "CREATE TRIGGER TRG_PLACEMARK_RTREE_DEL AFTER DELETE ON PLACEMARK BEGIN" +
+                    " DELETE FROM PLACEMARK_RTREE WHERE _ID=old._ID;" +
+                    " END"
+        )
+    }
+
+    /**
+     * Create the FTS5 trigram index on placemark name, triggers keep it aligned to PLACEMARK.
+     * Trigrams match any substring, like the plain name filter, so the index is created only if
+     * the SQLite build supports it, diacritics are folded when the tokenizer allows it.
+     */
+    private fun createTextIndex(db: SQLiteDatabase) {
+        val created = sequenceOf("trigram remove_diacritics 1", "trigram").any { tokenizer ->
+            try {
+                db.execSQL(
+                    "CREATE VIRTUAL TABLE PLACEMARK_FTS USING fts5(name," +
+                            "content='PLACEMARK',content_rowid='_ID',tokenize='$tokenizer')"
+                )
+                true
+            } catch (e: SQLException) {
+                Log.w(PlacemarkDatabase::class.java.simpleName, "FTS5 $tokenizer not available", e)
+                false
+            }
+        }
+        if (!created) return
+        db.execSQL("INSERT INTO PLACEMARK_FTS(PLACEMARK_FTS) VALUES('rebuild')")
+        val deleteOld =
+            "INSERT INTO PLACEMARK_FTS(PLACEMARK_FTS,rowid,name) VALUES ('delete',old._ID,old.name);"
+        val insertNew =
+            "INSERT INTO PLACEMARK_FTS(rowid,name) VALUES (new._ID,new.name);"
+        db.execSQL("CREATE TRIGGER TRG_PLACEMARK_FTS_INS AFTER INSERT ON PLACEMARK BEGIN $insertNew END")
+        db.execSQL(
+            "CREATE TRIGGER TRG_PLACEMARK_FTS_UPD AFTER UPDATE OF name ON PLACEMARK BEGIN" +
+                    " $deleteOld $insertNew END"
+        )
+        db.execSQL("CREATE TRIGGER TRG_PLACEMARK_FTS_DEL AFTER DELETE ON PLACEMARK BEGIN $deleteOld END")
+    }
+
+    companion object {
+        /**
+         * Min length of a text searchable using [PLACEMARK_FTS][createTextIndex]
+         */
+        const val TEXT_INDEX_MIN_LENGTH = 3
+
+        private val SPATIAL_INDEX_TRIGGERS =
+            listOf("TRG_PLACEMARK_RTREE_INS", "TRG_PLACEMARK_RTREE_UPD", "TRG_PLACEMARK_RTREE_DEL")
+        private val TEXT_INDEX_TRIGGERS =
+            listOf("TRG_PLACEMARK_FTS_INS", "TRG_PLACEMARK_FTS_UPD", "TRG_PLACEMARK_FTS_DEL")
+
+        private fun hasTable(db: SQLiteDatabase, name: String): Boolean =
+            db.rawQuery(
+                "SELECT 1 FROM sqlite_master WHERE type='table' AND name=?",
+                arrayOf(name)
+            ).use { cursor -> cursor.moveToFirst() }
+
+        private fun hasTrigger(db: SQLiteDatabase, name: String): Boolean =
+            db.rawQuery(
+                "SELECT 1 FROM sqlite_master WHERE type='trigger' AND name=?",
+                arrayOf(name)
+            ).use { cursor -> cursor.moveToFirst() }
+
+        /**
+         * Check if a virtual table can be read, its module and tokenizer must be available
+         */
+        private fun isUsable(db: SQLiteDatabase, table: String): Boolean =
+            try {
+                db.rawQuery("SELECT 1 FROM $table LIMIT 1", null).use { cursor -> cursor.moveToFirst() }
+                true
+            } catch (e: SQLException) {
+                Log.w(PlacemarkDatabase::class.java.simpleName, "Index $table not usable", e)
+                false
+            }
     }
 }
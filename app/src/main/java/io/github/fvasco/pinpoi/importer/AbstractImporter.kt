@@ -3,6 +3,8 @@ package io.github.fvasco.pinpoi.importer
 import android.util.Log
 import io.github.fvasco.pinpoi.model.Placemark
 import io.github.fvasco.pinpoi.util.DEBUG
+import java.io.File
+import java.io.IOException
 import java.io.InputStream
 
 /**
@@ -15,6 +17,29 @@ abstract class AbstractImporter {
     var collectionId: Long = 0
     var fileFormatFilter: FileFormatFilter = FileFormatFilter.NONE
 
+    /**
+     * Location of imported data, used to resolve linked sources, empty if unknown
+     */
+    var source: String = ""
+
+    /**
+     * Directory for local copies of linked sources, no copy if null
+     */
+    var cacheDirectory: File? = null
+
+    /**
+     * This importer reads a local file better than a stream, see [importImpl]
+     */
+    open val prefersFile: Boolean
+        get() = false
+
+    /**
+     * Last import read other sources, like KML network links,
+     * changes of linked sources are not detected by HTTP validators of the imported source
+     */
+    var hasLinkedSources: Boolean = false
+        protected set
+
     /**
      * Import data
      *
@@ -24,9 +49,23 @@ abstract class AbstractImporter {
         requireNotNull(consumer) { "No consumer" }
         require(collectionId > 0) { "Collection id not valid: $collectionId" }
         // do import
+        hasLinkedSources = false
         importImpl(inputStream)
     }
 
+    /**
+     * Import data from a local file
+     *
+     * @param file data source
+     */
+    fun importPlacemarks(file: File) {
+        requireNotNull(consumer) { "No consumer" }
+        require(collectionId > 0) { "Collection id not valid: $collectionId" }
+        // do import
+        hasLinkedSources = false
+        importImpl(file)
+    }
+
     fun importPlacemark(placemark: Placemark) {
         val (latitude, longitude) = placemark.coordinates
         if (latitude >= -90f && latitude <= 90f
@@ -54,6 +93,8 @@ abstract class AbstractImporter {
         collectionId = importer.collectionId
         consumer = importer.consumer
         fileFormatFilter = importer.fileFormatFilter
+        source = importer.source
+        cacheDirectory = importer.cacheDirectory
     }
 
     /**
@@ -62,4 +103,14 @@ abstract class AbstractImporter {
      * @param inputStream data source
      */
     abstract fun importImpl(inputStream: InputStream)
+
+    /**
+     * Read datas from file, default implementation reads it as stream
+
+     * @param file data source
+     */
+    @Throws(IOException::class)
+    open fun importImpl(file: File) {
+        file.inputStream().buffered().use { importImpl(it) }
+    }
 }
@@ -7,7 +7,6 @@ import org.xmlpull.v1.XmlPullParserException
 import org.xmlpull.v1.XmlPullParserFactory
 import java.io.IOException
 import java.io.InputStream
-import java.util.*
 
 /**
  * Base XML importer
@@ -17,10 +16,27 @@ import java.util.*
 abstract class AbstractXmlImporter : AbstractImporter() {
     protected val parser: XmlPullParser = XML_PULL_PARSER_FACTORY.newPullParser()
     protected var placemark: Placemark? = null
-    protected var text: String = ""
     protected var namespace: String = ""
     protected var tag: String = DOCUMENT_TAG
-    private val tagStack = ArrayDeque<Pair<String, String>>()
+
+    /**
+     * Current element text, reused for each element
+     */
+    protected val textBuilder = StringBuilder()
+
+    /**
+     * Current element text
+     */
+    protected val text: String get() = textBuilder.toString()
+
+    private val textStartLength = IntArray(2)
+    private val namespaceStack = ArrayList<String>()
+    private val tagStack = ArrayList<String>()
+
+    /**
+     * Canonical instance of tag and namespace names
+     */
+    private val symbols = HashMap<String, String>()
 
     @Throws(IOException::class)
     override fun importImpl(inputStream: InputStream) {
@@ -32,29 +48,31 @@ abstract class AbstractXmlImporter : AbstractImporter() {
             while (eventType != XmlPullParser.END_DOCUMENT) {
                 when (eventType) {
                     XmlPullParser.START_TAG -> {
-                        tagStack.addLast(namespace to tag)
-                        namespace = parser.namespace
-                        tag = parser.name
-                        text = ""
+                        namespaceStack.add(namespace)
+                        tagStack.add(tag)
+                        namespace = symbol(parser.namespace)
+                        tag = symbol(parser.name)
+                        textBuilder.setLength(0)
                         handleStartTag()
                     }
 
-                    XmlPullParser.TEXT -> if (text.isEmpty()) text =
-                        parser.text else text += parser.text
+                    XmlPullParser.TEXT -> {
+                        val characters = parser.getTextCharacters(textStartLength)
+                        textBuilder.append(characters, textStartLength[0], textStartLength[1])
+                    }
 
                     XmlPullParser.END_TAG -> {
                         handleEndTag()
-                        val namespaceTag = tagStack.removeLast()
-                        namespace = namespaceTag.first
-                        tag = namespaceTag.second
-                        text = ""
+                        namespace = namespaceStack.removeAt(namespaceStack.size - 1)
+                        tag = tagStack.removeAt(tagStack.size - 1)
+                        textBuilder.setLength(0)
                     }
                 }
                 eventType = parser.next()
             }
             assertDebug(tag === DOCUMENT_TAG)
             assertDebug(placemark == null, placemark)
-            assertDebug(text == "", text)
+            assertDebug(textBuilder.isEmpty(), textBuilder)
         } catch (e: XmlPullParserException) {
             throw IOException("Error reading XML file", e)
         }
@@ -81,13 +99,67 @@ abstract class AbstractXmlImporter : AbstractImporter() {
      */
     protected fun checkCurrentPath(vararg tags: String): Boolean {
         if (tags.size != tagStack.size - 1) return false
-        val iterator = tagStack.descendingIterator()
         for (i in tags.indices.reversed()) {
-            if (tags[i] != iterator.next().second) return false
+            if (tags[i] != tagStack[i + 1]) return false
         }
         return true
     }
 
+    /**
+     * Parse a decimal number `[+-]?\d*(\.\d*)?([eE][+-]?\d+)?` in [textBuilder]
+     *
+     * @return parsed number or NaN
+     */
+    protected fun parseFloat(start: Int, end: Int): Float {
+        var pos = start
+        val negative = pos < end && textBuilder[pos] == '-'
+        if (pos < end && (negative || textBuilder[pos] == '+')) ++pos
+        var mantissa = 0L
+        var significantDigits = 0
+        var exponent = 0
+        var digits = 0
+        var fraction = false
+        while (pos < end) {
+            val c = textBuilder[pos]
+            if (c in '0'..'9') {
+                ++digits
+                if (significantDigits < MAX_SIGNIFICANT_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0')
+                    if (mantissa != 0L) ++significantDigits
+                    if (fraction) --exponent
+                } else if (!fraction) {
+                    ++exponent
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true
+            } else break
+            ++pos
+        }
+        if (digits == 0) return Float.NaN
+        if (pos < end && (textBuilder[pos] == 'e' || textBuilder[pos] == 'E')) {
+            ++pos
+            val negativeExponent = pos < end && textBuilder[pos] == '-'
+            if (pos < end && (negativeExponent || textBuilder[pos] == '+')) ++pos
+            if (pos == end) return Float.NaN
+            var value = 0
+            while (pos < end && textBuilder[pos] in '0'..'9') {
+                if (value < 1000) value = value * 10 + (textBuilder[pos] - '0')
+                ++pos
+            }
+            exponent += if (negativeExponent) -value else value
+        }
+        if (pos != end) return Float.NaN
+        val value =
+            if (exponent < 0) mantissa / Math.pow(10.0, -exponent.toDouble())
+            else mantissa * Math.pow(10.0, exponent.toDouble())
+        return (if (negative) -value else value).toFloat()
+    }
+
+    private fun symbol(name: String?): String {
+        if (name == null) return ""
+        return symbols[name] ?: name.intern().also { symbols[it] = it }
+    }
+
     /**
      * Handle a start tag
      */
@@ -95,13 +167,14 @@ abstract class AbstractXmlImporter : AbstractImporter() {
     protected abstract fun handleStartTag()
 
     /**
-     * Handle a end tag, text is in [.text] attribute
+     * Handle a end tag, text is in [.textBuilder] attribute
      */
     @Throws(IOException::class)
     protected abstract fun handleEndTag()
 
     companion object {
         private const val DOCUMENT_TAG = "<XML>"
+        private const val MAX_SIGNIFICANT_DIGITS = 18
 
         private val XML_PULL_PARSER_FACTORY: XmlPullParserFactory by lazy {
             XmlPullParserFactory.newInstance().apply {
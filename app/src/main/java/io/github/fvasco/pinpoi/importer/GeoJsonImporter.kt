@@ -2,19 +2,80 @@ package io.github.fvasco.pinpoi.importer
 
 import android.text.Html
 import android.text.TextUtils
+import android.util.JsonReader
+import android.util.JsonToken
 import io.github.fvasco.pinpoi.model.Placemark
 import io.github.fvasco.pinpoi.util.Coordinates
 import org.json.JSONArray
 import org.json.JSONObject
+import java.io.IOException
 import java.io.InputStream
 
+/**
+ * GeoJSON importer, features are read one at a time.
+ *
+ * @author Francesco Vasco
+ */
 class GeoJsonImporter : AbstractImporter() {
 
+    @Throws(IOException::class)
     override fun importImpl(inputStream: InputStream) {
-        val json = inputStream.use { it.reader().readText() }.let(::JSONObject)
-        parse(json)
+        JsonReader(inputStream.reader()).use { reader ->
+            reader.isLenient = true
+            // root members, except features
+            val json = JSONObject()
+            reader.beginObject()
+            while (reader.hasNext()) {
+                val name = reader.nextName()
+                if (name == "features" && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    // stream FeatureCollection
+                    reader.beginArray()
+                    while (reader.hasNext()) {
+                        val feature = reader.readValue()
+                        if (feature is JSONObject) parse(feature)
+                    }
+                    reader.endArray()
+                } else {
+                    json.put(name, reader.readValue())
+                }
+            }
+            reader.endObject()
+            parse(json)
+        }
     }
 
+    /**
+     * Read current value as [JSONObject], [JSONArray] or primitive value
+     */
+    private fun JsonReader.readValue(): Any =
+        when (peek()) {
+            JsonToken.BEGIN_OBJECT -> {
+                val json = JSONObject()
+                beginObject()
+                while (hasNext()) json.put(nextName(), readValue())
+                endObject()
+                json
+            }
+
+            JsonToken.BEGIN_ARRAY -> {
+                val json = JSONArray()
+                beginArray()
+                while (hasNext()) json.put(readValue())
+                endArray()
+                json
+            }
+
+            JsonToken.STRING -> nextString()
+            JsonToken.NUMBER -> nextString().let { it.toLongOrNull() ?: it.toDouble() }
+            JsonToken.BOOLEAN -> nextBoolean()
+            JsonToken.NULL -> {
+                nextNull()
+                JSONObject.NULL
+            }
+
+            else -> throw IOException("Unexpected JSON token ${peek()}")
+        }
+
     private fun parse(json: JSONObject) {
         when (json.optString("type")) {
             "Feature" -> parseFeature(json)
@@ -25,7 +86,8 @@ class GeoJsonImporter : AbstractImporter() {
     private fun parseFeatureCollection(json: JSONObject) {
         val features = json.optJSONArray("features") ?: return
         repeat(features.length()) { i ->
-            val feature = features.getJSONObject(i)
+            // skip malformed feature
+            val feature = features.optJSONObject(i) ?: return@repeat
             parse(feature)
         }
     }
@@ -31,9 +31,19 @@ class GeoRssImporter : AbstractXmlImporter() {
 
             "point" // Atom
             -> {
-                val parts = text.split("[ ,]+".toRegex(), 3).toTypedArray()
-                if (parts.size >= 2) {
-                    p.coordinates = Coordinates(parts[0].toFloat(), parts[1].toFloat())
+                // format: latitude longitude
+                val end = textBuilder.length
+                var pos = skipSeparators(0, end)
+                val latitudeStart = pos
+                while (pos < end && !isSeparator(textBuilder[pos])) ++pos
+                val latitudeEnd = pos
+                pos = skipSeparators(pos, end)
+                val longitudeStart = pos
+                while (pos < end && !isSeparator(textBuilder[pos])) ++pos
+                val latitude = parseFloat(latitudeStart, latitudeEnd)
+                val longitude = parseFloat(longitudeStart, pos)
+                if (!latitude.isNaN() && !longitude.isNaN()) {
+                    p.coordinates = Coordinates(latitude, longitude)
                 }
             }
 
@@ -42,4 +52,12 @@ class GeoRssImporter : AbstractXmlImporter() {
             "long" -> p.coordinates = p.coordinates.copy(longitude = text.toFloat())
         }
     }
+
+    private fun skipSeparators(start: Int, end: Int): Int {
+        var pos = start
+        while (pos < end && isSeparator(textBuilder[pos])) ++pos
+        return pos
+    }
+
+    private fun isSeparator(c: Char) = c == ',' || c <= ' '
 }
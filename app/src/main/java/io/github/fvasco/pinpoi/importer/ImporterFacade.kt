@@ -1,7 +1,6 @@
 package io.github.fvasco.pinpoi.importer
 
 import android.content.Context
-import android.database.sqlite.SQLiteDatabase
 import android.net.Uri
 import android.util.Log
 import io.github.fvasco.pinpoi.dao.PlacemarkCollectionDao
@@ -12,8 +11,13 @@ import io.github.fvasco.pinpoi.util.*
 import java.io.File
 import java.io.IOException
 import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.URLConnection
 import java.util.*
 import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
 
 /**
  * Import [Placemark] and update [PlacemarkCollectionDao]
@@ -35,6 +39,31 @@ class ImporterFacade(context: Context) {
     private var progressDialogMessageFormat: String? = null
     var fileFormatFilter: FileFormatFilter = FileFormatFilter.NONE
 
+    /**
+     * Parse data while reading it, otherwise data is copied in a local file before parsing.
+     * Importers that [prefer a file][AbstractImporter.prefersFile] always read the local file.
+     */
+    var pipelined: Boolean = true
+
+    /**
+     * Optional executor of merge transactions, a single thread executor serializes the writes of many imports.
+     * Placemarks are always parsed and staged in the import thread.
+     */
+    var mergeExecutor: ExecutorService? = null
+
+    /**
+     * Optional listener of staged placemark count, invoked in the import thread while parsing
+     */
+    var progressListener: ((Int) -> Unit)? = null
+
+    /**
+     * Placemark changes of last successful import
+     */
+    var lastMergeResult: PlacemarkDao.MergeResult? = null
+        private set
+
+    private val networkLinkCacheDirectory = File(context.cacheDir, NETWORK_LINK_CACHE_DIRECTORY)
+
     init {
         this.placemarkDao = PlacemarkDao(context)
         this.placemarkCollectionDao = PlacemarkCollectionDao(context)
@@ -56,107 +85,256 @@ class ImporterFacade(context: Context) {
     /**
      * Import a generic resource into data base, this action refresh collection.
      * If imported count is 0 no modification is done.
+     * If the remote resource is not modified since last update then nothing is imported.
      * **Side effect** update and save placermak collection
      * @return imported [io.github.fvasco.pinpoi.model.Placemark]
      */
     @Throws(IOException::class)
     fun importPlacemarks(placemarkCollection: PlacemarkCollection, context: Context): Int {
-        val resource = placemarkCollection.source
-        val (mimeType, inputStream) = openInputStream(resource)
-        val importer =
-            if (ZipImporter.isZipInputStream(inputStream)) ZipImporter()
-            else createImporter(resource, mimeType, fileFormatFilter)
-                ?: throw IOException("Cannot import $resource")
-        return importPlacemarks(placemarkCollection, importer, inputStream, context)
+        val source = openInputStream(placemarkCollection)
+        val inputStream = source.inputStream ?: return updateNotModified(placemarkCollection)
+        inputStream.use {
+            val importer = createImporter(placemarkCollection.source, source.mimeType, inputStream)
+            return importPlacemarks(
+                placemarkCollection, importer, inputStream, context,
+                source.httpEtag, source.httpLastModified
+            )
+        }
     }
 
+    /**
+     * Import placemarks from inputStream, the stream is closed
+     */
     fun importPlacemarks(
         placemarkCollection: PlacemarkCollection,
         importer: AbstractImporter,
         inputStream: InputStream,
         context: Context
+    ): Int = inputStream.use { importPlacemarks(placemarkCollection, importer, inputStream, context, "", "") }
+
+    private fun importPlacemarks(
+        placemarkCollection: PlacemarkCollection,
+        importer: AbstractImporter,
+        inputStream: InputStream,
+        context: Context,
+        httpEtag: String,
+        httpLastModified: String
     ): Int {
-        placemarkCollectionDao.open()
-        val placemarkQueue = ArrayBlockingQueue<PlacemarkEvent>(64)
         try {
             runOnUiThread { progressDialog?.show() }
 
-            // copy data locally to avoid network issue
-            val tempFile = File(context.cacheDir, "importPlacemarks.tmp");
-            tempFile.delete()
-            tempFile.outputStream().buffered(8 * 1024).use(inputStream::copyTo)
+            val tempFile = File.createTempFile("importPlacemarks", ".tmp", context.cacheDir)
+            try {
+                if (pipelined && !importer.prefersFile) {
+                    // read data while parsing, data is copied locally too
+                    AsyncInputStream(inputStream, PIPE_SIZE, tempFile, PIPE_TIMEOUT_MILLIS).use { pipedInputStream ->
+                        try {
+                            return importPlacemarks(
+                                placemarkCollection, importer, null, pipedInputStream,
+                                httpEtag, httpLastModified
+                            )
+                        } catch (e: IOException) {
+                            if (!pipedInputStream.pipeBroken) throw e
+                            // parsing too slow, the source is released and copied locally
+                            Log.i(
+                                ImporterFacade::class.java.simpleName,
+                                "Pipe broken, import local copy of ${placemarkCollection.source}"
+                            )
+                            return importPlacemarks(
+                                placemarkCollection, importer, pipedInputStream.awaitTee(), null,
+                                httpEtag, httpLastModified
+                            )
+                        }
+                    }
+                }
+
+                // copy data locally to avoid network issue
+                tempFile.outputStream().buffered(8 * 1024).use(inputStream::copyTo)
+                return importPlacemarks(
+                    placemarkCollection, importer, tempFile, null,
+                    httpEtag, httpLastModified
+                )
+            } finally {
+                tempFile.delete()
+            }
+        } finally {
+            runOnUiThread { progressDialog?.tryDismiss() }
+        }
+    }
 
+    /**
+     * Import placemarks from pipedInputStream, if present, otherwise from file.
+     * Placemarks are staged while reading the source, the write lock is held only to merge them.
+     */
+    private fun importPlacemarks(
+        placemarkCollection: PlacemarkCollection,
+        importer: AbstractImporter,
+        file: File?,
+        pipedInputStream: InputStream?,
+        httpEtag: String,
+        httpLastModified: String
+    ): Int {
+        placemarkCollectionDao.open()
+        val placemarkQueue = ArrayBlockingQueue<PlacemarkEvent>(16)
+        try {
             // insert new placemarks
             val importFuture = doAsync {
                 try {
-                    tempFile.inputStream().buffered().use { inputStream ->
-                        try {
-                            importer.collectionId = placemarkCollection.id
-                            importer.consumer =
-                                { placemarkQueue.put(PlacemarkEvent.NewPlacemark(it)) }
-                            importer.importPlacemarks(inputStream)
-                        } catch (e: Exception) {
-                            placemarkQueue.put(PlacemarkEvent.ParseError(e))
+                    var batch = ArrayList<Placemark>(PLACEMARK_BATCH_SIZE)
+                    importer.collectionId = placemarkCollection.id
+                    importer.source = placemarkCollection.source
+                    importer.cacheDirectory = networkLinkCacheDirectory
+                    importer.consumer = { placemark ->
+                        batch.add(placemark)
+                        if (batch.size == PLACEMARK_BATCH_SIZE) {
+                            placemarkQueue.put(PlacemarkEvent.NewPlacemarks(batch))
+                            batch = ArrayList(PLACEMARK_BATCH_SIZE)
                         }
                     }
+                    if (pipedInputStream == null) importer.importPlacemarks(checkNotNull(file))
+                    else pipedInputStream.buffered().use { importer.importPlacemarks(it) }
+                    if (batch.isNotEmpty()) {
+                        placemarkQueue.put(PlacemarkEvent.NewPlacemarks(batch))
+                    }
+                } catch (e: Exception) {
+                    placemarkQueue.put(PlacemarkEvent.ParseError(e))
                 } finally {
                     placemarkQueue.put(PlacemarkEvent.End)
                 }
             }
             var placemarkCount = 0
             placemarkDao.open()
-            val placemarkDaoDatabase = placemarkDao.database!!
-            placemarkDaoDatabase.beginTransaction()
             try {
-                // remove old placemarks
-                placemarkDao.deleteByCollectionId(placemarkCollection.id)
+                // stage new placemarks, then merge them with old ones
+                placemarkDao.createStaging()
                 var placemarkEvent = placemarkQueue.take()
-                while (placemarkEvent is PlacemarkEvent.NewPlacemark) {
-                    val placemark = placemarkEvent.placemark
-                    if (placemarkDao.insert(placemark, SQLiteDatabase.CONFLICT_IGNORE)) {
-                        ++placemarkCount
-                    } else {
-                        // discard (duplicate?) placemark
-                        if (DEBUG) {
-                            Log.d(
-                                ImporterFacade::class.java.simpleName,
-                                "Placemark discarded $placemark"
-                            )
-                        }
-                    }
+                while (placemarkEvent is PlacemarkEvent.NewPlacemarks) {
+                    // discard (duplicate?) placemarks
+                    placemarkCount += placemarkDao.insertStaging(placemarkEvent.placemarks)
+                    progressListener?.invoke(placemarkCount)
                     placemarkEvent = placemarkQueue.take()
                 }
                 if (placemarkEvent is PlacemarkEvent.ParseError) throw placemarkEvent.throwable
                 // wait import and check exception
                 importFuture.get()
                 if (placemarkCount > 0) {
-                    // update placemark collection
-                    placemarkCollection.lastUpdate = System.currentTimeMillis()
-                    placemarkCollection.poiCount = placemarkCount
-                    placemarkCollectionDao.update(placemarkCollection)
-                    // confirm transaction
-                    placemarkDaoDatabase.setTransactionSuccessful()
+                    val mergeExecutor = mergeExecutor
+                    if (mergeExecutor == null) {
+                        mergeStaging(placemarkCollection, importer, placemarkCount, httpEtag, httpLastModified)
+                    } else {
+                        // staging table is in the primary connection, the merge thread uses it too
+                        val mergeFuture = mergeExecutor.submit(Callable {
+                            mergeStaging(placemarkCollection, importer, placemarkCount, httpEtag, httpLastModified)
+                        })
+                        try {
+                            mergeFuture.get()
+                        } catch (e: ExecutionException) {
+                            throw e.cause ?: e
+                        } finally {
+                            // a running merge completes, a pending one is skipped
+                            mergeFuture.cancel(false)
+                        }
+                    }
                 }
                 return placemarkCount
             } catch (e: Exception) {
                 throw IOException("Error importing placemarks", e)
             } finally {
                 importFuture.cancel(true)
-                placemarkDaoDatabase.endTransaction()
-                placemarkDao.close()
-                tempFile.delete()
+                try {
+                    placemarkDao.dropStaging()
+                } finally {
+                    placemarkDao.close()
+                }
             }
         } finally {
-            try {
-                placemarkCollectionDao.close()
-            } finally {
-                runOnUiThread { progressDialog?.tryDismiss() }
+            placemarkCollectionDao.close()
+        }
+    }
+
+    /**
+     * Merge staged placemarks and update placemark collection in a single transaction
+     */
+    private fun mergeStaging(
+        placemarkCollection: PlacemarkCollection,
+        importer: AbstractImporter,
+        placemarkCount: Int,
+        httpEtag: String,
+        httpLastModified: String
+    ) {
+        val placemarkDaoDatabase = placemarkDao.database!!
+        placemarkDaoDatabase.beginTransactionNonExclusive()
+        try {
+            val mergeResult = placemarkDao.mergeStaging(placemarkCollection.id)
+            lastMergeResult = mergeResult
+            placemarkDao.updateBounds(placemarkCollection)
+            // update placemark collection, last update is the last placemark change
+            if (mergeResult != PlacemarkDao.MergeResult(added = 0, changed = 0, removed = 0)) {
+                placemarkCollection.lastUpdate = System.currentTimeMillis()
             }
+            placemarkCollection.poiCount = placemarkCount
+            // linked sources can change alone, so a source with links is always downloaded
+            placemarkCollection.httpEtag = if (importer.hasLinkedSources) "" else httpEtag
+            placemarkCollection.httpLastModified =
+                if (importer.hasLinkedSources) "" else httpLastModified
+            placemarkCollectionDao.update(placemarkCollection)
+            // confirm transaction
+            placemarkDaoDatabase.setTransactionSuccessful()
+        } finally {
+            placemarkDaoDatabase.endTransaction()
         }
     }
 
+    /**
+     * Source is not modified since last update, collection is unchanged
+     * @return placemark count
+     */
+    private fun updateNotModified(placemarkCollection: PlacemarkCollection): Int {
+        Log.i(ImporterFacade::class.java.simpleName, "Not modified ${placemarkCollection.source}")
+        lastMergeResult = PlacemarkDao.MergeResult(added = 0, changed = 0, removed = 0)
+        return placemarkCollection.poiCount
+    }
+
+    @Throws(IOException::class)
+    private fun openInputStream(placemarkCollection: PlacemarkCollection): Source =
+        openInputStream(
+            makeURL(placemarkCollection.source).openConnection(),
+            placemarkCollection.httpEtag.takeIf { placemarkCollection.poiCount > 0 } ?: "",
+            placemarkCollection.httpLastModified.takeIf { placemarkCollection.poiCount > 0 } ?: ""
+        )
+
+    @Throws(IOException::class)
+    private fun createImporter(
+        resource: String,
+        mimeType: String?,
+        inputStream: InputStream
+    ): AbstractImporter =
+        if (ZipImporter.isZipInputStream(inputStream)) ZipImporter()
+        else createImporter(resource, mimeType, fileFormatFilter)
+            ?: throw IOException("Cannot import $resource")
+
     companion object {
 
+        /**
+         * Placemarks inserted together in database
+         */
+        private const val PLACEMARK_BATCH_SIZE = 256
+
+        /**
+         * Data buffered by [pipelined] import
+         */
+        private const val PIPE_SIZE = 256 * 1024
+
+        /**
+         * Max wait of [pipelined] import for a slow parser, then the source is copied locally only
+         */
+        private const val PIPE_TIMEOUT_MILLIS = 5_000L
+
+        /**
+         * Local copy of KML network links, in cache directory
+         */
+        private const val NETWORK_LINK_CACHE_DIRECTORY = "networkLink"
+
         private val supportedMimeType: SortedSet<String> =
             FileFormatFilter.values().flatMap { it.validMimeTypes }
                 .plus("application/vnd.google-earth.kmz")
@@ -245,21 +423,52 @@ class ImporterFacade(context: Context) {
                 FileFormatFilter.RSS -> GeoJsonImporter()
             }
 
-        private fun openInputStream(resource: String): Source {
-            val connection = makeURL(resource).openConnection()
+        /**
+         * Open a connection, HTTP validators are sent if not empty
+         *
+         * @return the source, its input stream is null if resource is not modified
+         */
+        internal fun openInputStream(
+            connection: URLConnection,
+            httpEtag: String,
+            httpLastModified: String
+        ): Source {
             connection.addRequestProperty(
                 "Accept", supportedMimeType.joinToString(postfix = ", */*;q=0.1")
             )
+            if (connection is HttpURLConnection) {
+                if (httpEtag.isNotEmpty()) connection.addRequestProperty("If-None-Match", httpEtag)
+                if (httpLastModified.isNotEmpty())
+                    connection.addRequestProperty("If-Modified-Since", httpLastModified)
+            }
             connection.connect()
-            val mimeType: String? = connection.getHeaderField("Content-Type")
-            val inputStream: InputStream = connection.getInputStream().buffered()
-            return Source(mimeType, inputStream)
+            if (connection !is HttpURLConnection) {
+                return Source(
+                    connection.getHeaderField("Content-Type"),
+                    connection.getInputStream().buffered()
+                )
+            }
+            if (connection.responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                connection.disconnect()
+                return Source(null, null, httpEtag, httpLastModified)
+            }
+            return Source(
+                connection.getHeaderField("Content-Type"),
+                connection.getInputStream().buffered(),
+                connection.getHeaderField("ETag") ?: "",
+                connection.getHeaderField("Last-Modified") ?: ""
+            )
         }
 
-        private data class Source(val mimeType: String?, val inputStream: InputStream)
+        internal data class Source(
+            val mimeType: String?,
+            val inputStream: InputStream?,
+            val httpEtag: String = "",
+            val httpLastModified: String = ""
+        )
 
         private sealed class PlacemarkEvent {
-            class NewPlacemark(val placemark: Placemark) : PlacemarkEvent()
+            class NewPlacemarks(val placemarks: List<Placemark>) : PlacemarkEvent()
             object End : PlacemarkEvent()
             class ParseError(val throwable: Throwable) : PlacemarkEvent()
         }
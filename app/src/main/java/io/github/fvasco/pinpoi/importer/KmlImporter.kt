@@ -2,8 +2,8 @@ package io.github.fvasco.pinpoi.importer
 
 import android.util.Log
 import io.github.fvasco.pinpoi.util.Coordinates
-import io.github.fvasco.pinpoi.util.makeURL
 import java.io.IOException
+import java.io.InputStream
 
 /**
  * KML importer
@@ -15,6 +15,29 @@ class KmlImporter : AbstractXmlImporter() {
     private var latitude: Float = Float.NaN
     private var longitude: Float = Float.NaN
 
+    /**
+     * NetworkLink hrefs of last imported document
+     */
+    internal val networkLinks = ArrayList<String>()
+
+    /**
+     * Resolver of the root document, null if this is the root document
+     */
+    internal var networkLinkResolver: NetworkLinkResolver? = null
+
+    /**
+     * Import document, then import linked documents
+     */
+    @Throws(IOException::class)
+    override fun importImpl(inputStream: InputStream) {
+        networkLinks.clear()
+        super.importImpl(inputStream)
+        if (networkLinkResolver == null && networkLinks.isNotEmpty()) {
+            hasLinkedSources = true
+            NetworkLinkResolver(this).resolve(networkLinks)
+        }
+    }
+
     override fun handleStartTag() {
         // skip extension
         if (tag == "kml" && documentNamespace == null) documentNamespace = namespace
@@ -35,19 +58,9 @@ class KmlImporter : AbstractXmlImporter() {
 
         if (placemark == null) {
             if ("href" == tag && checkCurrentPath("kml", "Document", "NetworkLink", "Url")) {
-                val href = text
-                Log.e(KmlImporter::class.java.simpleName, "NetworkLink href $href")
-                val connection = makeURL(href).openConnection()
-                connection.addRequestProperty(
-                    "Accept",
-                    FileFormatFilter.KML.validMimeTypes.joinToString(postfix = ", */*;q=0.1")
-                )
-                connection.connect()
-                connection.getInputStream().use { inputStream ->
-                    val delegateImporter = KmlImporter()
-                    delegateImporter.configureFrom(this)
-                    delegateImporter.importPlacemarks(inputStream)
-                }
+                val href = text.trim()
+                Log.d(KmlImporter::class.java.simpleName, "NetworkLink href $href")
+                if (href.isNotEmpty()) networkLinks.add(href)
             }
         } else {
             val p = placemark ?: return
@@ -63,19 +76,41 @@ class KmlImporter : AbstractXmlImporter() {
 
                 "name" -> p.name = text
                 "description" -> p.description = text
-                "coordinates" -> // read multiple lines if present (point, line, polygon)
-                    for (line in text.trim { it <= ' ' }.split("\\s+".toRegex())
-                        .dropLastWhile { it.isEmpty() }) {
-                        // format: longitude, latitude, altitude
-                        val coordinates = line.split(',', limit = 3).takeIf { it.size in 2..3 }
-                            ?: continue
-                        val lon = coordinates[0].toFloatOrNull() ?: continue
-                        val lat = coordinates[1].toFloatOrNull() ?: continue
-                        latitude = lat
-                        longitude = lon
-                        break
-                    }
+                "coordinates" -> readCoordinates()
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Read first valid tuple in coordinates (point, line, polygon)
+     * Tuple format: longitude,latitude[,altitude]
+     */
+    private fun readCoordinates() {
+        val end = textBuilder.length
+        var pos = 0
+        while (pos < end) {
+            // find tuple
+            while (pos < end && textBuilder[pos] <= ' ') ++pos
+            val tupleStart = pos
+            while (pos < end && textBuilder[pos] > ' ') ++pos
+            val tupleEnd = pos
+            if (tupleStart == tupleEnd) return
+
+            val longitudeEnd = indexOf(',', tupleStart, tupleEnd)
+            if (longitudeEnd == tupleEnd) continue
+            val latitudeEnd = indexOf(',', longitudeEnd + 1, tupleEnd)
+            val lon = parseFloat(tupleStart, longitudeEnd)
+            val lat = parseFloat(longitudeEnd + 1, latitudeEnd)
+            if (lon.isNaN() || lat.isNaN()) continue
+            latitude = lat
+            longitude = lon
+            return
+        }
+    }
+
+    private fun indexOf(c: Char, start: Int, end: Int): Int {
+        var pos = start
+        while (pos < end && textBuilder[pos] != c) ++pos
+        return pos
+    }
+}
@@ -0,0 +1,273 @@
+package io.github.fvasco.pinpoi.importer
+
+import android.util.Log
+import io.github.fvasco.pinpoi.model.Placemark
+import io.github.fvasco.pinpoi.util.makeURL
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.net.URL
+import java.security.MessageDigest
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.Future
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Resolve KML network links of a document.
+ * Linked documents are downloaded concurrently by a shared executor, at most [PARALLELISM] at time,
+ * each URL is imported once so duplicated links and link cycles are skipped.
+ * Placemarks are passed to root importer consumer in the caller thread.
+ *
+ * @author Francesco Vasco
+ */
+internal class NetworkLinkResolver(private val rootImporter: KmlImporter) {
+
+    private val visitedUrls = HashSet<String>()
+    private val pendingDocuments = AtomicInteger()
+    private val queue: BlockingQueue<LinkEvent> = ArrayBlockingQueue(QUEUE_SIZE)
+
+    /**
+     * Submitted imports, guarded by [visitedUrls], null when resolution ends
+     */
+    private var futures: MutableList<Future<*>>? = ArrayList()
+
+    /**
+     * Import all linked documents
+     *
+     * @param hrefs links of root document
+     */
+    @Throws(IOException::class)
+    fun resolve(hrefs: List<String>) {
+        val consumer = checkNotNull(rootImporter.consumer)
+        // root document is already imported
+        val rootUrl = rootImporter.source.takeIf { it.isNotEmpty() }?.let { source ->
+            try {
+                makeURL(source)
+            } catch (e: IOException) {
+                Log.w(NetworkLinkResolver::class.java.simpleName, "Invalid source $source", e)
+                null
+            }
+        }
+        if (rootUrl != null) visitedUrls.add(rootUrl.toString())
+        try {
+            for (href in hrefs) submit(rootUrl, href, 1)
+            while (pendingDocuments.get() > 0) {
+                when (val linkEvent = queue.take()) {
+                    is LinkEvent.NewPlacemark -> consumer(linkEvent.placemark)
+                    is LinkEvent.ParseError -> throw IOException("Error importing ${linkEvent.url}", linkEvent.throwable)
+                    LinkEvent.End -> pendingDocuments.decrementAndGet()
+                }
+            }
+        } finally {
+            // stop running imports, nested links are not submitted anymore
+            val futures = synchronized(visitedUrls) { futures.also { futures = null } }
+            futures?.forEach { it.cancel(true) }
+            rootImporter.cacheDirectory?.let(::evictCache)
+        }
+    }
+
+    /**
+     * Submit a link import, if not already done
+     *
+     * @param baseUrl url of document containing the link, null for root document
+     */
+    private fun submit(baseUrl: URL?, href: String, depth: Int) {
+        val url = try {
+            // same URL form of root document
+            makeURL(if (baseUrl == null) href else URL(baseUrl, href).toString())
+        } catch (e: IOException) {
+            Log.w(NetworkLinkResolver::class.java.simpleName, "Invalid NetworkLink href $href", e)
+            return
+        }
+        if (depth > MAX_DEPTH) {
+            Log.w(NetworkLinkResolver::class.java.simpleName, "NetworkLink too deep $url")
+            return
+        }
+        synchronized(visitedUrls) {
+            val futures = futures ?: return
+            if (!visitedUrls.add(url.toString())) {
+                Log.d(NetworkLinkResolver::class.java.simpleName, "NetworkLink already imported $url")
+                return
+            }
+
+            Log.i(NetworkLinkResolver::class.java.simpleName, "NetworkLink $url depth $depth")
+            pendingDocuments.incrementAndGet()
+            futures += EXECUTOR.submit(Runnable { importLink(url, depth) })
+        }
+    }
+
+    private fun importLink(url: URL, depth: Int) {
+        try {
+            val importer = KmlImporter()
+            importer.configureFrom(rootImporter)
+            importer.source = url.toString()
+            importer.networkLinkResolver = this
+            importer.consumer = { queue.put(LinkEvent.NewPlacemark(it)) }
+            openInputStream(url).use { importer.importPlacemarks(it) }
+            // submit nested links before end, so pending documents never drop to zero
+            for (nestedHref in importer.networkLinks) submit(url, nestedHref, depth + 1)
+            queue.put(LinkEvent.End)
+        } catch (e: InterruptedException) {
+            // import aborted
+        } catch (e: Throwable) {
+            // always notify the end of document, the caller waits for it
+            try {
+                queue.put(LinkEvent.ParseError(url, e))
+            } catch (ie: InterruptedException) {
+                // import aborted
+            }
+        }
+    }
+
+    /**
+     * Open linked document, using local copy if not modified
+     */
+    @Throws(IOException::class)
+    private fun openInputStream(url: URL): InputStream {
+        val cacheDir = rootImporter.cacheDirectory?.takeIf { it.isDirectory || it.mkdirs() }
+        if (cacheDir == null) {
+            return checkNotNull(ImporterFacade.openInputStream(url.openConnection(), "", "").inputStream)
+        }
+        return openCachedInputStream(url, cacheDir, sha1(url.toString()), true)
+    }
+
+    /**
+     * Open linked document through local copy, the returned stream is not affected by a later copy update.
+     * Concurrent imports can share the same local copy, the document is downloaded in a temporary file
+     * and the copy is locked only to replace it.
+     *
+     * @param validate send validators of local copy, if any
+     */
+    @Throws(IOException::class)
+    private fun openCachedInputStream(url: URL, cacheDir: File, key: String, validate: Boolean): InputStream {
+        val lock = CACHE_LOCKS[(key.hashCode() and Int.MAX_VALUE) % CACHE_LOCKS.size]
+        val dataFile = File(cacheDir, "$key.kml")
+        val validatorFile = File(cacheDir, "$key.validator")
+        var httpEtag = ""
+        var httpLastModified = ""
+        if (validate) synchronized(lock) {
+            if (dataFile.isFile && validatorFile.isFile) {
+                val validator = validatorFile.readLines()
+                httpEtag = validator.getOrElse(0) { "" }
+                httpLastModified = validator.getOrElse(1) { "" }
+            }
+        }
+        val source = ImporterFacade.openInputStream(url.openConnection(), httpEtag, httpLastModified)
+        val inputStream = source.inputStream
+        if (inputStream == null) {
+            synchronized(lock) {
+                if (dataFile.isFile) {
+                    Log.d(NetworkLinkResolver::class.java.simpleName, "NetworkLink not modified $url")
+                    // recently used, see evictCache
+                    dataFile.setLastModified(System.currentTimeMillis())
+                    return dataFile.inputStream().buffered()
+                }
+            }
+            // local copy evicted meanwhile
+            return openCachedInputStream(url, cacheDir, key, false)
+        }
+        if (source.httpEtag.isEmpty() && source.httpLastModified.isEmpty()) {
+            // not cacheable
+            return inputStream
+        }
+
+        val tempFile = File.createTempFile(key, ".tmp", cacheDir)
+        try {
+            inputStream.use { input -> tempFile.outputStream().use { input.copyTo(it) } }
+            // opened stream reads this copy even if it is replaced
+            val dataInputStream = tempFile.inputStream().buffered()
+            try {
+                synchronized(lock) {
+                    validatorFile.delete()
+                    if (!tempFile.renameTo(dataFile)) throw IOException("Cannot write $dataFile")
+                    validatorFile.writeText(source.httpEtag + '\n' + source.httpLastModified)
+                }
+            } catch (e: IOException) {
+                dataInputStream.close()
+                throw e
+            }
+            return dataInputStream
+        } finally {
+            tempFile.delete()
+        }
+    }
+
+    private sealed class LinkEvent {
+        class NewPlacemark(val placemark: Placemark) : LinkEvent()
+        object End : LinkEvent()
+        class ParseError(val url: URL, val throwable: Throwable) : LinkEvent()
+    }
+
+    companion object {
+        /**
+         * Max nesting of network links
+         */
+        private const val MAX_DEPTH = 8
+        private const val QUEUE_SIZE = 256
+
+        /**
+         * Max concurrent downloads
+         */
+        private const val PARALLELISM = 4
+
+        /**
+         * Local copies not used for this time are deleted
+         */
+        private val CACHE_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30)
+
+        /**
+         * Max size of local copies, least recently used ones are deleted first
+         */
+        private const val CACHE_MAX_SIZE = 32L * 1024 * 1024
+
+        /**
+         * Downloads of all resolvers, idle threads are released
+         */
+        private val EXECUTOR =
+            ThreadPoolExecutor(PARALLELISM, PARALLELISM, 60, TimeUnit.SECONDS, LinkedBlockingQueue()).apply {
+                allowCoreThreadTimeOut(true)
+            }
+
+        /**
+         * Locks of local copies, by key hash
+         */
+        private val CACHE_LOCKS = Array(16) { Any() }
+
+        /**
+         * Delete local copies older than [CACHE_MAX_AGE_MILLIS], then least recently used ones
+         * until cache size is at most [CACHE_MAX_SIZE]
+         */
+        private fun evictCache(cacheDir: File) {
+            val now = System.currentTimeMillis()
+            val entries = (cacheDir.listFiles() ?: return)
+                .groupBy { it.name.substringBefore('.') }
+                .toList()
+                // least recently used first
+                .sortedBy { (_, files) -> files.maxOf { it.lastModified() } }
+            var size = entries.sumOf { (_, files) -> files.sumOf { it.length() } }
+            for ((key, files) in entries) {
+                val lastModified = files.maxOf { it.lastModified() }
+                val expired = now - lastModified > CACHE_MAX_AGE_MILLIS
+                if (size <= CACHE_MAX_SIZE && !expired) break
+                // a recent temporary file may be a running download
+                if (!expired && files.any { it.name.endsWith(".tmp") }) continue
+                synchronized(CACHE_LOCKS[(key.hashCode() and Int.MAX_VALUE) % CACHE_LOCKS.size]) {
+                    // validator first, a copy without validator is never used
+                    for (file in files.sortedBy { it.name.endsWith(".kml") }) {
+                        val length = file.length()
+                        if (file.delete()) size -= length
+                    }
+                }
+                Log.d(NetworkLinkResolver::class.java.simpleName, "NetworkLink copy evicted $key")
+            }
+        }
+
+        private fun sha1(text: String): String =
+            MessageDigest.getInstance("SHA-1").digest(text.toByteArray())
+                .joinToString("") { "%02x".format(it) }
+    }
+}
@@ -3,9 +3,16 @@ package io.github.fvasco.pinpoi.importer
 import android.util.Log
 import io.github.fvasco.pinpoi.model.Placemark
 import io.github.fvasco.pinpoi.util.Coordinates
+import io.github.fvasco.pinpoi.util.DEBUG
 import java.io.DataInputStream
+import java.io.File
 import java.io.IOException
 import java.io.InputStream
+import java.io.RandomAccessFile
+import java.nio.BufferUnderflowException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
 
 /**
  * Tomtom OV2 importer
@@ -21,75 +28,43 @@ length-14 bytes: ASCII string specifying the name of the POI
 1 byte: null byte
 */
 class Ov2Importer : AbstractImporter() {
-    private fun readIntLE(inputStream: InputStream): Int {
-        return inputStream.read() or (inputStream.read() shl 8) or (inputStream.read() shl 16) or (inputStream.read() shl 24)
-    }
+
+    private var nameBuffer = ByteArray(64)
+    private var textDecoder = TextDecoder()
+
+    override val prefersFile: Boolean
+        get() = true
 
     @Throws(IOException::class)
     override fun importImpl(inputStream: InputStream) {
+        textDecoder = TextDecoder()
         val dataInputStream = DataInputStream(inputStream)
-        var nameBuffer = ByteArray(64)
+        var recordBuffer = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN)
         var rectype = dataInputStream.read()
         while (rectype >= 0) {
             when (rectype) {
 
                 // it is a simple POI record
                 2, 3 -> {
-                    val total = readIntLE(dataInputStream)
-                    Log.d(
-                        Ov2Importer::class.java.simpleName,
-                        "Process record type $rectype total $total"
-                    )
-                    var nameLength = total - 14
-
-                    // read lon, lat
-                    // coordinate format: int*100000
-                    val longitudeInt = readIntLE(dataInputStream)
-                    val latitudeInt = readIntLE(dataInputStream)
-                    if (longitudeInt < -18000000 || longitudeInt > 18000000
-                        || latitudeInt < -9000000 || latitudeInt > 9000000
-                    ) {
-                        throw IOException("Wrong coordinates $longitudeInt,$latitudeInt")
+                    val total = Integer.reverseBytes(dataInputStream.readInt())
+                    val recordLength = poiRecordLength(rectype, total)
+                    if (recordLength > recordBuffer.capacity()) {
+                        recordBuffer = ByteBuffer.allocate(recordLength).order(ByteOrder.LITTLE_ENDIAN)
                     }
-
-                    // read name
-                    if (nameLength > nameBuffer.size) {
-                        //ensure buffer size
-                        nameBuffer = ByteArray(nameLength)
-                    }
-                    dataInputStream.readFully(nameBuffer, 0, nameLength)
-                    // skip null byte
-                    if (dataInputStream.read() != 0) {
-                        throw IOException("wrong string termination $rectype")
-                    }
-                    // if rectype=3 description contains two-zero terminated string
-                    // select first, discard other
-                    if (rectype == 3) {
-                        var i = 0
-                        while (i < nameLength) {
-                            if (nameBuffer[i].toInt() == 0) {
-                                // set name length
-                                // then exit
-                                nameLength = i
-                            }
-                            ++i
-                        }
-                    }
-                    val placemark = Placemark()
-                    placemark.name = TextImporter.toString(nameBuffer, 0, nameLength)
-                    placemark.coordinates =
-                        Coordinates(latitudeInt / 100000f, longitudeInt / 100000f)
-                    importPlacemark(placemark)
+                    dataInputStream.readFully(recordBuffer.array(), 0, recordLength)
+                    recordBuffer.position(0)
+                    recordBuffer.limit(recordLength)
+                    importPoiRecord(rectype, recordBuffer)
                 }
 
                 // block header
                 1 -> {
-                    Log.d(Ov2Importer::class.java.simpleName, "Skip record type $rectype")
+                    if (DEBUG) Log.d(Ov2Importer::class.java.simpleName, "Skip record type $rectype")
                     dataInputStream.skipBytes(20)
                 }
 
                 else -> {
-                    val total = readIntLE(dataInputStream)
+                    val total = Integer.reverseBytes(dataInputStream.readInt())
                     Log.w(
                         Ov2Importer::class.java.simpleName,
                         "Skip record type $rectype total $total"
@@ -101,4 +76,117 @@ class Ov2Importer : AbstractImporter() {
             rectype = dataInputStream.read()
         }
     }
+
+    /**
+     * Map the file in memory and decode it in place
+     */
+    @Throws(IOException::class)
+    override fun importImpl(file: File) {
+        if (file.length() > Int.MAX_VALUE) return super.importImpl(file)
+        textDecoder = TextDecoder()
+        val buffer = RandomAccessFile(file, "r").use { randomAccessFile ->
+            randomAccessFile.channel.map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length())
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+        try {
+            while (buffer.hasRemaining()) {
+                when (val rectype = buffer.get().toInt() and 0xFF) {
+
+                    // it is a simple POI record
+                    2, 3 -> {
+                        val total = buffer.getInt()
+                        val recordLength = poiRecordLength(rectype, total)
+                        val recordEnd = buffer.position() + recordLength
+                        if (recordEnd > buffer.limit()) throw IOException("Truncated record type $rectype")
+                        buffer.limit(recordEnd)
+                        importPoiRecord(rectype, buffer)
+                        buffer.limit(buffer.capacity())
+                        buffer.position(recordEnd)
+                    }
+
+                    // block header
+                    1 -> {
+                        if (DEBUG) Log.d(Ov2Importer::class.java.simpleName, "Skip record type $rectype")
+                        skip(buffer, 20)
+                    }
+
+                    else -> {
+                        val total = buffer.getInt()
+                        Log.w(
+                            Ov2Importer::class.java.simpleName,
+                            "Skip record type $rectype total $total"
+                        )
+                        require(total > 4)
+                        skip(buffer, total - 4)
+                    }
+                }
+            }
+        } catch (e: BufferUnderflowException) {
+            throw IOException("Truncated file", e)
+        }
+    }
+
+    /**
+     * Decode a POI record after the length field
+     *
+     * @param record buffer from longitude to record end, little endian
+     */
+    @Throws(IOException::class)
+    private fun importPoiRecord(rectype: Int, record: ByteBuffer) {
+        // read lon, lat
+        // coordinate format: int*100000
+        val longitudeInt = record.getInt()
+        val latitudeInt = record.getInt()
+        if (longitudeInt < -18000000 || longitudeInt > 18000000
+            || latitudeInt < -9000000 || latitudeInt > 9000000
+        ) {
+            throw IOException("Wrong coordinates $longitudeInt,$latitudeInt")
+        }
+
+        // read name
+        var nameLength = record.remaining() - 1
+        if (nameLength > nameBuffer.size) {
+            //ensure buffer size
+            nameBuffer = ByteArray(nameLength)
+        }
+        record.get(nameBuffer, 0, nameLength)
+        // skip null byte
+        if (record.get() != 0.toByte()) {
+            throw IOException("wrong string termination $rectype")
+        }
+        // if rectype=3 description contains two-zero terminated string
+        // select first, discard other
+        if (rectype == 3) {
+            for (i in 0 until nameLength) {
+                if (nameBuffer[i].toInt() == 0) {
+                    nameLength = i
+                    break
+                }
+            }
+        }
+        val placemark = Placemark()
+        placemark.name = textDecoder.decode(nameBuffer, 0, nameLength)
+        placemark.coordinates =
+            Coordinates(latitudeInt / 100000f, longitudeInt / 100000f)
+        importPlacemark(placemark)
+    }
+
+    companion object {
+        /**
+         * @return bytes after the length field of a POI record
+         */
+        @Throws(IOException::class)
+        private fun poiRecordLength(rectype: Int, total: Int): Int {
+            if (DEBUG) {
+                Log.d(Ov2Importer::class.java.simpleName, "Process record type $rectype total $total")
+            }
+            if (total < 14) throw IOException("Wrong record length $total type $rectype")
+            return total - 5
+        }
+
+        private fun skip(buffer: ByteBuffer, count: Int) {
+            if (count > buffer.remaining()) throw BufferUnderflowException()
+            buffer.position(buffer.position() + count)
+        }
+    }
 }
@@ -0,0 +1,118 @@
+package io.github.fvasco.pinpoi.importer
+
+import android.content.Context
+import android.os.SystemClock
+import android.util.Log
+import io.github.fvasco.pinpoi.dao.PlacemarkDao
+import io.github.fvasco.pinpoi.model.PlacemarkCollection
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Update many placemark collections.
+ * Collections are downloaded, parsed and staged concurrently, at most [parallelism] at time.
+ * A single writer thread merges staged placemarks, one collection at time,
+ * so parsers never wait the write lock of another merge, see [ImporterFacade.mergeExecutor].
+ *
+ * @author Francesco Vasco
+ */
+class PlacemarkCollectionUpdater(private val context: Context) {
+
+    /**
+     * Max concurrent updates
+     */
+    var parallelism = 4
+
+    /**
+     * Update result of a single collection
+     *
+     * @param placemarkCount imported placemark count, 0 on error
+     * @param updateMillis download, parse and write time
+     */
+    data class UpdateResult(
+        val placemarkCollection: PlacemarkCollection,
+        val placemarkCount: Int,
+        val mergeResult: PlacemarkDao.MergeResult?,
+        val updateMillis: Long,
+        val error: Exception?
+    )
+
+    /**
+     * Update all collections.
+     * The listeners are invoked in the updating threads,
+     * progressListener receives the staged placemark count while parsing a collection,
+     * listener is invoked after each collection update.
+     *
+     * @return update results, in the same order of collections
+     */
+    fun updateAll(
+        placemarkCollections: List<PlacemarkCollection>,
+        progressListener: ((PlacemarkCollection, Int) -> Unit)? = null,
+        listener: ((UpdateResult) -> Unit)? = null
+    ): List<UpdateResult> {
+        if (placemarkCollections.isEmpty()) return emptyList()
+        val executor = Executors.newFixedThreadPool(max(1, min(parallelism, placemarkCollections.size)))
+        val mergeExecutor = Executors.newSingleThreadExecutor()
+        try {
+            val futures = placemarkCollections.map { placemarkCollection ->
+                executor.submit(Callable {
+                    val importerFacade = ImporterFacade(context)
+                    importerFacade.fileFormatFilter = placemarkCollection.fileFormatFilter
+                    importerFacade.mergeExecutor = mergeExecutor
+                    if (progressListener != null) {
+                        importerFacade.progressListener = { placemarkCount ->
+                            notifyProgress(progressListener, placemarkCollection, placemarkCount)
+                        }
+                    }
+                    val updateStart = SystemClock.elapsedRealtime()
+                    try {
+                        val placemarkCount = importerFacade.importPlacemarks(placemarkCollection, context)
+                        UpdateResult(
+                            placemarkCollection, placemarkCount, importerFacade.lastMergeResult,
+                            SystemClock.elapsedRealtime() - updateStart, null
+                        )
+                    } catch (e: Exception) {
+                        UpdateResult(
+                            placemarkCollection, 0, null,
+                            SystemClock.elapsedRealtime() - updateStart, e
+                        )
+                    }.also { notify(listener, it) }
+                })
+            }
+            return futures.map { it.get() }
+        } finally {
+            // pending updates are not started, running imports clean up on interrupt
+            executor.shutdownNow()
+            // running merge completes
+            mergeExecutor.shutdown()
+        }
+    }
+
+    private fun notifyProgress(
+        progressListener: (PlacemarkCollection, Int) -> Unit,
+        placemarkCollection: PlacemarkCollection,
+        placemarkCount: Int
+    ) {
+        try {
+            progressListener(placemarkCollection, placemarkCount)
+        } catch (e: Exception) {
+            Log.w(PlacemarkCollectionUpdater::class.java.simpleName, "Progress listener error", e)
+        }
+    }
+
+    private fun notify(listener: ((UpdateResult) -> Unit)?, updateResult: UpdateResult) {
+        Log.i(
+            PlacemarkCollectionUpdater::class.java.simpleName,
+            "Updated ${updateResult.placemarkCollection.name} count ${updateResult.placemarkCount}" +
+                    " in ${updateResult.updateMillis}ms",
+            updateResult.error
+        )
+        try {
+            listener?.invoke(updateResult)
+        } catch (e: Exception) {
+            Log.w(PlacemarkCollectionUpdater::class.java.simpleName, "Listener error", e)
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.fvasco.pinpoi.importer
+
+import java.nio.charset.Charset
+
+/**
+ * Decode text of a single import, the charset is detected once and used for the whole import.
+ * Text is UTF-8 unless a non UTF-8 sequence is found before the first valid non ASCII character,
+ * then ISO-8859-1 is used.
+ * This class is not thread safe, use an instance for each import.
+ *
+ * @author Francesco Vasco
+ */
+internal class TextDecoder {
+
+    /**
+     * Detected charset, null until a non ASCII character is found
+     */
+    var charset: Charset? = null
+        private set
+
+    /**
+     * Check UTF-8 byte order mark at text start
+     *
+     * @return byte order mark length, 0 if missing
+     */
+    fun skipBom(buffer: ByteArray, start: Int, end: Int): Int =
+        if (end - start >= UTF_8_BOM.size
+            && buffer[start] == UTF_8_BOM[0]
+            && buffer[start + 1] == UTF_8_BOM[1]
+            && buffer[start + 2] == UTF_8_BOM[2]
+        ) {
+            charset = Charsets.UTF_8
+            UTF_8_BOM.size
+        } else 0
+
+    /**
+     * Detect charset from text, if not already detected.
+     * A multi byte character truncated at the end of text is considered valid.
+     */
+    fun detect(buffer: ByteArray, start: Int, end: Int) {
+        if (charset != null) return
+        var pos = start
+        while (pos < end && buffer[pos] >= 0) ++pos
+        if (pos == end) return
+        charset = if (isUtf8(buffer, pos, end)) Charsets.UTF_8 else Charsets.ISO_8859_1
+    }
+
+    fun decode(buffer: ByteArray, start: Int, length: Int): String {
+        detect(buffer, start, start + length)
+        return String(buffer, start, length, charset ?: Charsets.ISO_8859_1)
+    }
+
+    private companion object {
+        private val UTF_8_BOM = byteArrayOf(0xEF.toByte(), 0xBB.toByte(), 0xBF.toByte())
+
+        private fun isUtf8(buffer: ByteArray, start: Int, end: Int): Boolean {
+            var pos = start
+            while (pos < end) {
+                val size = when (buffer[pos].toInt() and 0xFF) {
+                    in 0x00..0x7F -> 1
+                    in 0xC2..0xDF -> 2
+                    in 0xE0..0xEF -> 3
+                    in 0xF0..0xF4 -> 4
+                    else -> return false
+                }
+                for (i in 1 until size) {
+                    if (pos + i == end) return true
+                    if (buffer[pos + i].toInt() and 0xC0 != 0x80) return false
+                }
+                pos += size
+            }
+            return true
+        }
+    }
+}
@@ -3,11 +3,9 @@ package io.github.fvasco.pinpoi.importer
 import android.util.Log
 import io.github.fvasco.pinpoi.model.Placemark
 import io.github.fvasco.pinpoi.util.Coordinates
+import io.github.fvasco.pinpoi.util.DEBUG
 import java.io.IOException
 import java.io.InputStream
-import java.nio.ByteBuffer
-import java.nio.charset.CodingErrorAction
-import java.util.regex.Pattern
 
 /**
  * Import ASCII/UTF-8 file in format
@@ -20,79 +18,257 @@ import java.util.regex.Pattern
  */
 class TextImporter : AbstractImporter() {
 
-    private val buffer = ByteArray(4 * 1024)
+    private val buffer = ByteArray(64 * 1024)
+    private var textDecoder = TextDecoder()
+
+    /**
+     * Last number parsed by [parseNumber]
+     */
+    private var number = 0.0
 
     @Throws(IOException::class)
-    private fun readLine(inputStream: InputStream): String? {
+    override fun importImpl(inputStream: InputStream) {
+        textDecoder = TextDecoder()
+        // buffer contains a partial line in lineStart..<end, pos is the scan position
+        var lineStart = 0
         var pos = 0
-        var b: Int = inputStream.read()
-        while (b >= 0) {
-            if (b.toChar() == '\n' || b.toChar() == '\r') {
-                if (pos > 0) {
-                    return toString(buffer, 0, pos)
-                }
-            } else {
-                if (pos == buffer.size) {
-                    throw IOException("Line too long")
+        var end = 0
+        var bomChecked = false
+        while (true) {
+            val read = inputStream.read(buffer, end, buffer.size - end)
+            if (read < 0) break
+            end += read
+            if (!bomChecked) {
+                // wait for enough bytes
+                if (end < 3) continue
+                bomChecked = true
+                lineStart = textDecoder.skipBom(buffer, 0, end)
+                pos = lineStart
+            }
+            textDecoder.detect(buffer, lineStart, end)
+            while (pos < end) {
+                val b = buffer[pos]
+                if (b == LF || b == CR) {
+                    if (pos > lineStart) parseLine(lineStart, pos)
+                    lineStart = pos + 1
                 }
-                buffer[pos] = b.toByte()
                 ++pos
             }
-            b = inputStream.read()
+            if (lineStart == 0 && end == buffer.size) {
+                throw IOException("Line too long")
+            }
+            // move partial line at buffer start
+            System.arraycopy(buffer, lineStart, buffer, 0, end - lineStart)
+            end -= lineStart
+            pos = end
+            lineStart = 0
+        }
+        if (end > lineStart) {
+            textDecoder.detect(buffer, lineStart, end)
+            parseLine(lineStart, end)
         }
-        return if (b < 0 && pos == 0) null else toString(buffer, 0, pos)
     }
 
+    /**
+     * Parse the line in buffer, this is equivalent to match it against
+     * `\s*("?)([+-]?\d+\.\d+)\s*\1([,;\s])\s*("?)([+-]?\d+\.\d+)\4\s*\3\s*("?)(.*)\6\s*`
+     */
+    private fun parseLine(lineStart: Int, lineEnd: Int) {
+        // first number
+        var pos = skipWhitespace(lineStart, lineEnd)
+        val quoted1 = pos < lineEnd && buffer[pos] == QUOTE
+        if (quoted1) ++pos
+        pos = parseNumber(pos, lineEnd)
+        if (pos < 0) return skipLine(lineStart, lineEnd)
+        val number1 = number
 
-    @Throws(IOException::class)
-    override fun importImpl(inputStream: InputStream) {
-        var line: String? = readLine(inputStream)
-        while (line != null) {
-            val matcher = LINE_PATTERN.matcher(line)
-            if (matcher.matches()) {
-                try {
-                    val placemark = Placemark(
-                        // remove double double-quotes
-                        name = matcher.group(7).replace("\"\"", "\""),
-                        coordinates = Coordinates(
-                            matcher.group(if (fileFormatFilter == FileFormatFilter.CSV_LON_LAT) 5 else 2)
-                                .toFloat(),
-                            matcher.group(if (fileFormatFilter == FileFormatFilter.CSV_LON_LAT) 2 else 5)
-                                .toFloat()
-                        )
-                    )
-                    importPlacemark(placemark)
-                } catch (nfe: NumberFormatException) {
-                    Log.d(TextImporter::class.java.simpleName, "Skip line: $line", nfe)
-                }
+        // separator, a whitespace separator may be any whitespace in the run
+        var separator: Byte = 0
+        var whitespaceSeparators = 0
+        if (quoted1) {
+            pos = skipWhitespace(pos, lineEnd)
+            if (pos == lineEnd || buffer[pos] != QUOTE) return skipLine(lineStart, lineEnd)
+            ++pos
+            // separator follows the quote
+            if (pos < lineEnd) whitespaceSeparators = whitespaceBit(buffer[pos])
+        } else {
+            val whitespaceStart = pos
+            pos = skipWhitespace(pos, lineEnd)
+            for (i in whitespaceStart until pos) {
+                whitespaceSeparators = whitespaceSeparators or whitespaceBit(buffer[i])
+            }
+        }
+        if (pos < lineEnd && (buffer[pos] == COMMA || buffer[pos] == SEMICOLON)) {
+            separator = buffer[pos]
+            whitespaceSeparators = 0
+            ++pos
+        } else if (whitespaceSeparators == 0) {
+            return skipLine(lineStart, lineEnd)
+        }
+        pos = skipWhitespace(pos, lineEnd)
+
+        // second number
+        val quoted2 = pos < lineEnd && buffer[pos] == QUOTE
+        if (quoted2) ++pos
+        pos = parseNumber(pos, lineEnd)
+        if (pos < 0) return skipLine(lineStart, lineEnd)
+        val number2 = number
+        if (quoted2) {
+            if (pos == lineEnd || buffer[pos] != QUOTE) return skipLine(lineStart, lineEnd)
+            ++pos
+        }
+
+        // same separator
+        if (separator != 0.toByte()) {
+            pos = skipWhitespace(pos, lineEnd)
+            if (pos == lineEnd || buffer[pos] != separator) return skipLine(lineStart, lineEnd)
+            pos = skipWhitespace(pos + 1, lineEnd)
+        } else {
+            var found = false
+            while (pos < lineEnd && whitespaceBit(buffer[pos]) != 0) {
+                found = found || (whitespaceBit(buffer[pos]) and whitespaceSeparators) != 0
+                ++pos
+            }
+            if (!found) return skipLine(lineStart, lineEnd)
+        }
+
+        // name, quoted if it ends with a quote
+        var nameStart = pos
+        var nameEnd = lineEnd
+        if (pos < lineEnd && buffer[pos] == QUOTE) {
+            val lastQuote = skipWhitespaceBackward(pos, lineEnd) - 1
+            if (lastQuote > pos && buffer[lastQuote] == QUOTE) {
+                nameStart = pos + 1
+                nameEnd = lastQuote
+            }
+        }
 
+        val placemark = Placemark(
+            name = decodeName(nameStart, nameEnd),
+            coordinates =
+                if (fileFormatFilter == FileFormatFilter.CSV_LON_LAT) Coordinates(number2.toFloat(), number1.toFloat())
+                else Coordinates(number1.toFloat(), number2.toFloat())
+        )
+        importPlacemark(placemark)
+    }
+
+    /**
+     * Parse `[+-]?\d+\.\d+` into [number]
+     *
+     * @return position after number, -1 if there is not a number
+     */
+    private fun parseNumber(start: Int, end: Int): Int {
+        var pos = start
+        val negative = pos < end && buffer[pos] == MINUS
+        if (pos < end && (buffer[pos] == PLUS || negative)) ++pos
+        var mantissa = 0L
+        var digits = 0
+        var exponent = 0
+        val integerStart = pos
+        var digit = digitAt(pos, end)
+        while (digit >= 0) {
+            if (digits < MAX_DIGITS) {
+                mantissa = mantissa * 10 + digit
+                if (mantissa != 0L) ++digits
             } else {
-                Log.d(TextImporter::class.java.simpleName, "Skip line: $line")
+                ++exponent
+            }
+            digit = digitAt(++pos, end)
+        }
+        if (pos == integerStart || pos == end || buffer[pos] != DOT) return -1
+        val fractionStart = ++pos
+        digit = digitAt(pos, end)
+        while (digit >= 0) {
+            if (digits < MAX_DIGITS) {
+                mantissa = mantissa * 10 + digit
+                if (mantissa != 0L) ++digits
+                --exponent
             }
-            line = readLine(inputStream)
+            digit = digitAt(++pos, end)
         }
+        if (pos == fractionStart) return -1
+        val value =
+            if (exponent < 0) mantissa / pow10(-exponent)
+            else mantissa * pow10(exponent)
+        number = if (negative) -value else value
+        return pos
     }
 
-    companion object {
+    private fun digitAt(pos: Int, end: Int): Int {
+        if (pos >= end) return -1
+        val digit = buffer[pos] - ZERO
+        return if (digit in 0..9) digit else -1
+    }
 
-        private val LINE_PATTERN =
-            Pattern.compile("\\s*(\"?)([+-]?\\d+\\.\\d+)\\s*\\1([,;\\s])\\s*(\"?)([+-]?\\d+\\.\\d+)\\4\\s*\\3\\s*(\"?)(.*)\\6\\s*")
-        private val UTF_8_DECODER = Charsets.UTF_8.newDecoder()
-        private val LATIN1_DECODER = Charsets.ISO_8859_1.newDecoder()
+    private fun skipWhitespace(start: Int, end: Int): Int {
+        var pos = start
+        while (pos < end && whitespaceBit(buffer[pos]) != 0) ++pos
+        return pos
+    }
+
+    private fun skipWhitespaceBackward(start: Int, end: Int): Int {
+        var pos = end
+        while (pos > start && whitespaceBit(buffer[pos - 1]) != 0) --pos
+        return pos
+    }
+
+    /**
+     * Decode name, double double-quotes are unescaped in place
+     */
+    private fun decodeName(start: Int, end: Int): String {
+        var length = 0
+        var pos = start
+        var ascii = true
+        while (pos < end) {
+            val b = buffer[pos]
+            buffer[start + length] = b
+            ++length
+            if (b == QUOTE && pos + 1 < end && buffer[pos + 1] == QUOTE) ++pos
+            if (b < 0) ascii = false
+            ++pos
+        }
+        return if (ascii) String(buffer, start, length, Charsets.ISO_8859_1)
+        else textDecoder.decode(buffer, start, length)
+    }
 
-        init {
-            // fails on not mappable characters
-            UTF_8_DECODER.onUnmappableCharacter(CodingErrorAction.REPORT)
+    private fun skipLine(start: Int, end: Int) {
+        if (DEBUG) {
+            Log.d(TextImporter::class.java.simpleName, "Skip line: ${textDecoder.decode(buffer, start, end - start)}")
         }
+    }
+
+    companion object {
+
+        private const val LF = '\n'.code.toByte()
+        private const val CR = '\r'.code.toByte()
+        private const val QUOTE = '"'.code.toByte()
+        private const val COMMA = ','.code.toByte()
+        private const val SEMICOLON = ';'.code.toByte()
+        private const val DOT = '.'.code.toByte()
+        private const val PLUS = '+'.code.toByte()
+        private const val MINUS = '-'.code.toByte()
+        private const val ZERO = '0'.code.toByte()
 
         /**
-         * Decode text, if UTF-8 fails then use ISO-8859-1
+         * Max significant digits of a number
          */
-        fun toString(byteBuffer: ByteArray, start: Int, len: Int): String =
-            try {
-                UTF_8_DECODER.decode(ByteBuffer.wrap(byteBuffer, start, len)).toString()
-            } catch (e: CharacterCodingException) {
-                LATIN1_DECODER.decode(ByteBuffer.wrap(byteBuffer, start, len)).toString()
-            }
+        private const val MAX_DIGITS = 18
+        private val POW10 = DoubleArray(23) { Math.pow(10.0, it.toDouble()) }
+
+        private fun pow10(exponent: Int): Double =
+            if (exponent < POW10.size) POW10[exponent] else Math.pow(10.0, exponent.toDouble())
+
+        /**
+         * Distinct bit for each regex whitespace `[ \t\n\x0B\f\r]`, 0 otherwise
+         */
+        private fun whitespaceBit(b: Byte): Int = when (b.toInt()) {
+            ' '.code -> 1
+            '\t'.code -> 2
+            '\n'.code -> 4
+            0x0B -> 8
+            '\u000C'.code -> 16
+            '\r'.code -> 32
+            else -> 0
+        }
     }
 }
@@ -1,12 +1,20 @@
 package io.github.fvasco.pinpoi.importer
 
 import android.util.Log
+import io.github.fvasco.pinpoi.model.Placemark
 import io.github.fvasco.pinpoi.util.ZipGuardInputStream
+import java.io.File
 import java.io.IOException
 import java.io.InputStream
-import java.util.*
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
 import java.util.zip.ZipInputStream
+import kotlin.math.min
 
 /**
  * Import ZIP collection and KMZ file
@@ -15,30 +23,166 @@ import java.util.zip.ZipInputStream
  */
 class ZipImporter : AbstractImporter() {
 
+    /**
+     * Max entries imported concurrently from a zip file
+     */
+    var parallelism: Int = Runtime.getRuntime().availableProcessors()
+
+    /**
+     * Import placemarks in entry order, so the same archive always produces the same sequence.
+     * An entry waits for all previous entries to be consumed, so concurrency is limited.
+     */
+    var ordered: Boolean = false
+
+    override val prefersFile: Boolean
+        get() = true
+
     @Throws(IOException::class)
     override fun importImpl(inputStream: InputStream) {
         val zipInputStream = ZipInputStream(inputStream)
         var zipEntry: ZipEntry? = zipInputStream.nextEntry
         while (zipEntry != null) {
-            val entryName = zipEntry.name
-            val filename = entryName.substringAfterLast('/')
-            val extension = filename.substringAfterLast('.').lowercase()
-            if (!zipEntry.isDirectory && !filename.startsWith(".")
-                && (fileFormatFilter == FileFormatFilter.NONE || extension in fileFormatFilter.validExtensions)
-            ) {
-                val importer = ImporterFacade.createImporter(entryName, null, fileFormatFilter)
-                if (importer != null) {
-                    Log.d(ZipImporter::class.java.simpleName, "Import entry $entryName")
-                    importer.configureFrom(this)
-                    importer.importImpl(ZipGuardInputStream(zipInputStream))
-                }
+            val importer = createEntryImporter(zipEntry)
+            if (importer != null) {
+                importer.importImpl(ZipGuardInputStream(zipInputStream))
+                if (importer.hasLinkedSources) hasLinkedSources = true
             }
             zipEntry = zipInputStream.nextEntry
         }
     }
 
+    /**
+     * Import entries concurrently, using at most [parallelism] threads.
+     * Placemarks are passed to [consumer] in the caller thread.
+     */
+    @Throws(IOException::class)
+    override fun importImpl(file: File) {
+        ZipFile(file).use { zipFile ->
+            val entryImporters = zipFile.entries().asSequence()
+                .mapNotNull { zipEntry -> createEntryImporter(zipEntry)?.let { zipEntry to it } }
+                .toList()
+            if (entryImporters.size <= 1 || parallelism <= 1) {
+                for ((zipEntry, importer) in entryImporters) {
+                    zipFile.getInputStream(zipEntry).buffered().use { importer.importImpl(it) }
+                    if (importer.hasLinkedSources) hasLinkedSources = true
+                }
+                return
+            }
+
+            val executor = Executors.newFixedThreadPool(min(parallelism, entryImporters.size))
+            try {
+                val sharedQueue: BlockingQueue<EntryEvent>? =
+                    if (ordered) null else ArrayBlockingQueue(QUEUE_SIZE)
+                val queues = entryImporters.map { (zipEntry, importer) ->
+                    val queue = sharedQueue ?: ArrayBlockingQueue(QUEUE_SIZE)
+                    importer.consumer = { queue.put(EntryEvent.NewPlacemark(it)) }
+                    executor.execute {
+                        try {
+                            zipFile.getInputStream(zipEntry).buffered().use { importer.importImpl(it) }
+                            queue.put(EntryEvent.End)
+                        } catch (e: InterruptedException) {
+                            // import aborted
+                        } catch (e: Throwable) {
+                            // notify the end of entry, the consumer waits for it
+                            // but it may have already given up, so never wait forever
+                            try {
+                                if (!queue.offer(EntryEvent.ParseError(e), EVENT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                                    Log.w(ZipImporter::class.java.simpleName, "Error not consumed", e)
+                                }
+                            } catch (ie: InterruptedException) {
+                                // import aborted
+                            }
+                        }
+                    }
+                    queue
+                }
+
+                if (sharedQueue == null) {
+                    for (queue in queues) consume(queue, 1)
+                } else {
+                    consume(sharedQueue, entryImporters.size)
+                }
+                hasLinkedSources = entryImporters.any { (_, importer) -> importer.hasLinkedSources }
+            } finally {
+                executor.shutdownNow()
+                // workers read the zip file, wait them before closing it
+                awaitTermination(executor)
+            }
+        }
+    }
+
+    /**
+     * Wait executor termination, even if this thread is interrupted
+     */
+    private fun awaitTermination(executor: ExecutorService) {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(EVENT_TIMEOUT_SECONDS)
+        var interrupted = false
+        try {
+            while (true) {
+                try {
+                    if (!executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        Log.w(ZipImporter::class.java.simpleName, "Entry import not terminated")
+                    }
+                    return
+                } catch (e: InterruptedException) {
+                    interrupted = true
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt()
+        }
+    }
+
+    /**
+     * Pass placemarks to [consumer] until all entries end
+     */
+    private fun consume(queue: BlockingQueue<EntryEvent>, entryCount: Int) {
+        val consumer = checkNotNull(consumer)
+        var runningEntries = entryCount
+        while (runningEntries > 0) {
+            when (val entryEvent = queue.take()) {
+                is EntryEvent.NewPlacemark -> consumer(entryEvent.placemark)
+                is EntryEvent.ParseError -> throw entryEvent.throwable
+                EntryEvent.End -> --runningEntries
+            }
+        }
+    }
+
+    /**
+     * Create a configured importer for a zip entry
+     *
+     * @return the importer or null if entry is skipped
+     */
+    private fun createEntryImporter(zipEntry: ZipEntry): AbstractImporter? {
+        val entryName = zipEntry.name
+        val filename = entryName.substringAfterLast('/')
+        val extension = filename.substringAfterLast('.').lowercase()
+        if (zipEntry.isDirectory || filename.startsWith(".")
+            || (fileFormatFilter != FileFormatFilter.NONE && extension !in fileFormatFilter.validExtensions)
+        ) return null
+
+        val importer = ImporterFacade.createImporter(entryName, null, fileFormatFilter)
+            ?: return null
+        Log.d(ZipImporter::class.java.simpleName, "Import entry $entryName")
+        importer.configureFrom(this)
+        return importer
+    }
+
+    private sealed class EntryEvent {
+        class NewPlacemark(val placemark: Placemark) : EntryEvent()
+        object End : EntryEvent()
+        class ParseError(val throwable: Throwable) : EntryEvent()
+    }
+
     companion object {
 
+        private const val QUEUE_SIZE = 256
+
+        /**
+         * Max wait of an entry error notification and of worker termination
+         */
+        private const val EVENT_TIMEOUT_SECONDS = 10L
+
         fun isZipInputStream(inputStream: InputStream): Boolean {
             if (!inputStream.markSupported()) return false
             inputStream.mark(4)
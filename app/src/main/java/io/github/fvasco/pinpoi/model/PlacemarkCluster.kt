@@ -0,0 +1,25 @@
+package io.github.fvasco.pinpoi.model
+
+import io.github.fvasco.pinpoi.util.Coordinates
+
+/**
+ * Placemarks grouped in a map area.
+ * Used by [io.github.fvasco.pinpoi.dao.PlacemarkDao.findAllPlacemarkClusterInBox]
+ *
+ * @author Francesco Vasco
+ */
+class PlacemarkCluster(
+    /**
+     * Mean coordinates of placemarks
+     */
+    val coordinates: Coordinates,
+    val size: Int,
+    val latitudeMin: Float,
+    val latitudeMax: Float,
+    val longitudeMin: Float,
+    val longitudeMax: Float,
+    /**
+     * The placemark of a single placemark cluster, null otherwise
+     */
+    val placemark: PlacemarkSearchResult?
+)
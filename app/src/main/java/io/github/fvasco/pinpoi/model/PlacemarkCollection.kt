@@ -18,5 +18,23 @@ data class PlacemarkCollection(
      * Last collection update, unix time
      */
     var lastUpdate: Long = 0,
-    var poiCount: Int = 0
-)
\ No newline at end of file
+    var poiCount: Int = 0,
+    /**
+     * HTTP ETag of last update, empty if unknown
+     */
+    var httpEtag: String = "",
+    /**
+     * HTTP Last-Modified of last update, empty if unknown
+     */
+    var httpLastModified: String = "",
+    /**
+     * Bounding box of collection placemarks, NaN if unknown
+     */
+    var minLatitude: Float = Float.NaN,
+    var maxLatitude: Float = Float.NaN,
+    var minLongitude: Float = Float.NaN,
+    var maxLongitude: Float = Float.NaN
+) {
+    val hasBounds: Boolean
+        get() = !(minLatitude.isNaN() || maxLatitude.isNaN() || minLongitude.isNaN() || maxLongitude.isNaN())
+}
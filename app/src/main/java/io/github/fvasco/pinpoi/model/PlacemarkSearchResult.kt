@@ -12,5 +12,14 @@ class PlacemarkSearchResult(
     override val name: String,
     val note: String?,
     val flagged: Boolean,
-    val collectionId: Long
+    val collectionId: Long,
+    val collectionName: String = "",
+    /**
+     * Distance from search center, in meters
+     */
+    val distance: Float = Float.NaN,
+    /**
+     * Initial bearing from search center, in degrees east of true north
+     */
+    val bearing: Float = Float.NaN
 ) : PlacemarkBase
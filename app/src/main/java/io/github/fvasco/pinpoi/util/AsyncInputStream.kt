@@ -0,0 +1,148 @@
+package io.github.fvasco.pinpoi.util
+
+import android.os.SystemClock
+import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.PipedInputStream
+import java.io.PipedOutputStream
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import kotlin.math.min
+
+/**
+ * Read a source stream in background, at most bufferSize bytes are kept in memory.
+ * A source read error, of any type, is thrown at the end of this stream.
+ * Closing this stream stops background reading, the source is not closed.
+ *
+ * If a tee file is present, source data is copied in it too and a reader slower than pipeTimeoutMillis
+ * does not hold the source: the pipe is broken, see [pipeBroken], and the source is copied in the tee file only.
+
+ * @author Francesco Vasco
+ */
+class AsyncInputStream(
+    source: InputStream,
+    bufferSize: Int,
+    private val teeFile: File? = null,
+    private val pipeTimeoutMillis: Long = 0
+) : PipedInputStream(bufferSize) {
+
+    @Volatile
+    private var error: Throwable? = null
+
+    /**
+     * The reader was too slow, the remaining data is only in the tee file
+     */
+    @Volatile
+    var pipeBroken: Boolean = false
+        private set
+
+    private val copyFuture: Future<*>
+
+    init {
+        val pipeOutputStream = PipedOutputStream(this)
+        copyFuture = doAsync {
+            try {
+                val teeOutputStream = teeFile?.outputStream()
+                try {
+                    val buffer = ByteArray(min(8 * 1024, bufferSize))
+                    var count = source.read(buffer)
+                    while (count >= 0) {
+                        teeOutputStream?.write(buffer, 0, count)
+                        if (teeOutputStream == null) {
+                            pipeOutputStream.write(buffer, 0, count)
+                        } else if (!pipeBroken) {
+                            if (awaitPipeSpace(count)) {
+                                pipeOutputStream.write(buffer, 0, count)
+                            } else {
+                                pipeBroken = true
+                                pipeOutputStream.close()
+                            }
+                        }
+                        count = source.read(buffer)
+                    }
+                } finally {
+                    teeOutputStream?.close()
+                }
+            } catch (e: Throwable) {
+                // on pipe closed nobody reads it
+                error = e
+            } finally {
+                pipeOutputStream.close()
+            }
+        }
+    }
+
+    /**
+     * Wait for free space in pipe buffer, readers notify when they consume data
+     *
+     * @return false on timeout
+     */
+    private fun awaitPipeSpace(count: Int): Boolean {
+        synchronized(this) {
+            val timeout = SystemClock.elapsedRealtime() + pipeTimeoutMillis
+            while (buffer.size - available() < count) {
+                val wait = timeout - SystemClock.elapsedRealtime()
+                if (wait <= 0) return false
+                (this as Object).wait(wait)
+            }
+            return true
+        }
+    }
+
+    @Throws(IOException::class)
+    override fun read(): Int {
+        val b = super.read()
+        if (b < 0) checkError()
+        else notifyRead()
+        return b
+    }
+
+    @Throws(IOException::class)
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val count = super.read(b, off, len)
+        if (count < 0) checkError()
+        else notifyRead()
+        return count
+    }
+
+    private fun notifyRead() {
+        if (teeFile != null) synchronized(this) { (this as Object).notifyAll() }
+    }
+
+    /**
+     * Wait the copy of the whole source in the tee file
+     *
+     * @return the tee file
+     * @throws IOException on source read error
+     */
+    @Throws(IOException::class)
+    fun awaitTee(): File {
+        val teeFile = checkNotNull(teeFile) { "No tee file" }
+        try {
+            copyFuture.get()
+        } catch (e: ExecutionException) {
+            throw IOException("Error reading source", e.cause)
+        }
+        checkSourceError()
+        return teeFile
+    }
+
+    /**
+     * Throw source read error, if any, so a failed read is never a clean end of stream
+     */
+    @Throws(IOException::class)
+    private fun checkError() {
+        checkSourceError()
+        if (pipeBroken) throw IOException("Pipe broken, reader too slow")
+    }
+
+    @Throws(IOException::class)
+    private fun checkSourceError() {
+        when (val e = error) {
+            null -> return
+            is IOException -> throw e
+            else -> throw IOException("Error reading source", e)
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package io.github.fvasco.pinpoi.util
 
+import android.database.SQLException
+import android.database.sqlite.SQLiteDatabase
 import android.util.Log
 import io.github.fvasco.pinpoi.dao.AbstractDao
+import io.github.fvasco.pinpoi.dao.use
 import java.io.*
+import java.util.Properties
 import java.util.zip.ZipEntry
 import java.util.zip.ZipInputStream
 import java.util.zip.ZipOutputStream
@@ -14,76 +18,210 @@ import java.util.zip.ZipOutputStream
  */
 class BackupManager(private vararg val daos: AbstractDao) {
 
+    /**
+     * Create a backup
+     *
+     * @return backup creation time, changes made after it may be missing
+     */
     @Throws(IOException::class)
-    fun create(outputStream: OutputStream) {
+    fun create(outputStream: OutputStream): Long {
         Log.i(BackupManager::class.java.simpleName, "Create backup $outputStream")
+        val created = getCreationTime()
         ZipOutputStream(outputStream).use { zipOutputStream ->
+            zipOutputStream.putNextEntry(ZipEntry(INFO_ENTRY_NAME))
+            val info = Properties()
+            info.setProperty(INFO_CREATED, created.toString())
+            info.store(zipOutputStream, null)
+            zipOutputStream.closeEntry()
+
+            val databaseFiles = HashSet<File>()
             for (dao in daos) {
                 synchronized(dao) {
-                    val databaseFile: File
-                    dao.open()
-                    val database = dao.database!!
-                    try {
-                        databaseFile = File(database.path)
-                    } finally {
-                        database.close()
-                        dao.close()
-                    }
+                    val databaseFile = dao.use { File(it.database!!.path) }
+                    // daos can share the same database
+                    if (!databaseFiles.add(databaseFile)) return@synchronized
                     val zipEntry = ZipEntry(databaseFile.name)
                     zipOutputStream.putNextEntry(zipEntry)
-                    val databaseInputStream = FileInputStream(databaseFile)
+                    val snapshotFile = File(databaseFile.path + "-backup")
                     try {
-                        dao.lock()
-                        databaseInputStream.copyTo(zipOutputStream)
-                    } finally {
-                        try {
-                            databaseInputStream.close()
-                        } finally {
-                            dao.reset()
+                        if (createSnapshot(dao, snapshotFile)) {
+                            snapshotFile.inputStream().use { it.copyTo(zipOutputStream) }
+                        } else {
+                            lock(dao)
+                            try {
+                                FileInputStream(databaseFile).use { it.copyTo(zipOutputStream) }
+                            } finally {
+                                dao.reset()
+                            }
                         }
+                    } finally {
+                        snapshotFile.delete()
                     }
                     zipOutputStream.closeEntry()
                 }
             }
         }
+        return created
     }
 
+    /**
+     * Get the creation time in a write transaction, so running imports are committed before it
+     * and the following ones stamp a later last update
+     */
+    private fun getCreationTime(): Long =
+        daos.first().use { dao ->
+            val database = dao.database!!
+            database.beginTransactionNonExclusive()
+            try {
+                System.currentTimeMillis()
+            } finally {
+                database.endTransaction()
+            }
+        }
+
+    /**
+     * Write a consistent and compacted copy of the database into snapshotFile, database remains available.
+     *
+     * @return false if the SQLite version does not support VACUUM INTO
+     */
+    private fun createSnapshot(dao: AbstractDao, snapshotFile: File): Boolean {
+        snapshotFile.delete()
+        return try {
+            dao.use { it.database!!.execSQL("VACUUM INTO ?", arrayOf(snapshotFile.path)) }
+            true
+        } catch (e: SQLException) {
+            Log.w(BackupManager::class.java.simpleName, "Online backup not available", e)
+            snapshotFile.delete()
+            false
+        }
+    }
+
+    /**
+     * Lock the database of dao, waiting for other users to release it
+     */
     @Throws(IOException::class)
-    fun restore(fileInputStream: InputStream) {
+    private fun lock(dao: AbstractDao) {
+        try {
+            dao.lock()
+        } catch (e: IllegalStateException) {
+            throw IOException("Database in use", e)
+        }
+    }
+
+    /**
+     * Restore databases from backup.
+     * All databases are staged and verified before replacing the current ones,
+     * so an invalid backup does not modify any database.
+     *
+     * @return backup creation time, 0 if the backup does not record it
+     */
+    @Throws(IOException::class)
+    fun restore(fileInputStream: InputStream): Long {
         Log.i(BackupManager::class.java.simpleName, "Restore backup $fileInputStream")
-        ZipInputStream(fileInputStream).use { zipInputStream ->
-            var zipEntry = zipInputStream.nextEntry
-            while (zipEntry != null) {
-                for (dao in daos) {
-                    synchronized(dao) {
-                        val databasePath: File
-                        dao.open()
-                        val database = dao.database!!
-                        try {
-                            databasePath = File(database.path)
-                        } finally {
-                            database.close()
-                            dao.close()
+        // get paths before restore, opening a database migrates the legacy ones
+        val databasePaths = daos.map { dao -> synchronized(dao) { dao.use { File(it.database!!.path) } } }
+        val stagedDatabases = ArrayList<StagedDatabase>()
+        var created = 0L
+        try {
+            ZipInputStream(fileInputStream).use { zipInputStream ->
+                var zipEntry = zipInputStream.nextEntry
+                while (zipEntry != null) {
+                    val entryName = zipEntry.name
+                    if (entryName == INFO_ENTRY_NAME) {
+                        val info = Properties()
+                        info.load(ZipGuardInputStream(zipInputStream))
+                        created = info.getProperty(INFO_CREATED)?.toLongOrNull() ?: 0L
+                    }
+                    for ((dao, databasePath) in daos.zip(databasePaths)) {
+                        val restorePath = when (entryName) {
+                            databasePath.name -> databasePath
+                            // migrated on database open
+                            in LEGACY_DATABASE_NAMES -> File(databasePath.parentFile, entryName)
+                            else -> continue
                         }
-                        val databaseName = databasePath.name
-                        if (databaseName == zipEntry.name) {
-                            try {
-                                Log.i(
-                                    BackupManager::class.java.simpleName,
-                                    "restore database $databaseName"
-                                )
-                                FileOutputStream(databasePath).use { databaseOutputStream ->
-                                    dao.lock()
-                                    ZipGuardInputStream(zipInputStream).copyTo(databaseOutputStream)
-                                }
-                            } finally {
-                                dao.reset()
-                            }
+                        Log.i(BackupManager::class.java.simpleName, "stage database $entryName")
+                        val stagingFile = File(restorePath.path + "-restore")
+                        SQLiteDatabase.deleteDatabase(stagingFile)
+                        stagedDatabases += StagedDatabase(stagingFile, restorePath)
+                        FileOutputStream(stagingFile).use { databaseOutputStream ->
+                            ZipGuardInputStream(zipInputStream).copyTo(databaseOutputStream)
                         }
+                        val maxVersion =
+                            if (restorePath == databasePath) synchronized(dao) { dao.use { it.database!!.version } }
+                            else Int.MAX_VALUE
+                        verify(stagingFile, maxVersion)
+                        break
                     }
+                    zipEntry = zipInputStream.nextEntry
                 }
-                zipEntry = zipInputStream.nextEntry
+            }
+
+            // replace databases under a single lock, a database must not be opened with a partial restore
+            val lockedDaos = ArrayList<AbstractDao>()
+            try {
+                // daos can share the same database
+                for ((dao, _) in daos.zip(databasePaths).distinctBy { it.second }) {
+                    lock(dao)
+                    lockedDaos += dao
+                }
+                for (stagedDatabase in stagedDatabases) {
+                    val restorePath = stagedDatabase.restorePath
+                    Log.i(BackupManager::class.java.simpleName, "restore database ${restorePath.name}")
+                    // drop write-ahead log of replaced database
+                    File(restorePath.path + "-wal").delete()
+                    File(restorePath.path + "-shm").delete()
+                    if (!stagedDatabase.stagingFile.renameTo(restorePath)) {
+                        throw IOException("Cannot restore ${restorePath.name}")
+                    }
+                }
+            } finally {
+                for (dao in lockedDaos) dao.reset()
+            }
+        } finally {
+            for (stagedDatabase in stagedDatabases) {
+                SQLiteDatabase.deleteDatabase(stagedDatabase.stagingFile)
             }
         }
+        return created
+    }
+
+    /**
+     * Check integrity and schema version of a database file
+     *
+     * @param maxVersion max supported schema version
+     */
+    @Throws(IOException::class)
+    private fun verify(databaseFile: File, maxVersion: Int) {
+        try {
+            SQLiteDatabase.openDatabase(databaseFile.path, null, SQLiteDatabase.OPEN_READWRITE)
+                .use { database ->
+                    val integrityCheck = database.rawQuery("PRAGMA integrity_check", null)
+                        .use { cursor -> if (cursor.moveToFirst()) cursor.getString(0) else null }
+                    if (integrityCheck != "ok") {
+                        throw IOException("Database ${databaseFile.name} corrupted: $integrityCheck")
+                    }
+                    val version = database.version
+                    if (version !in 1..maxVersion) {
+                        throw IOException("Database ${databaseFile.name} version $version not supported")
+                    }
+                }
+        } catch (e: SQLException) {
+            throw IOException("Database ${databaseFile.name} not valid", e)
+        }
+    }
+
+    private class StagedDatabase(val stagingFile: File, val restorePath: File)
+
+    companion object {
+        /**
+         * Backup properties, old backups do not have it
+         */
+        private const val INFO_ENTRY_NAME = "backup.properties"
+        private const val INFO_CREATED = "created"
+
+        /**
+         * Databases of old backups
+         */
+        private val LEGACY_DATABASE_NAMES = setOf("PlacemarkCollection")
     }
 }
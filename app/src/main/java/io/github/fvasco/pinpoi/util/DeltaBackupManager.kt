@@ -0,0 +1,311 @@
+package io.github.fvasco.pinpoi.util
+
+import android.util.JsonReader
+import android.util.JsonWriter
+import android.util.Log
+import io.github.fvasco.pinpoi.dao.PlacemarkCollectionDao
+import io.github.fvasco.pinpoi.dao.PlacemarkDao
+import io.github.fvasco.pinpoi.dao.use
+import io.github.fvasco.pinpoi.importer.FileFormatFilter
+import io.github.fvasco.pinpoi.model.Placemark
+import io.github.fvasco.pinpoi.model.PlacemarkAnnotation
+import io.github.fvasco.pinpoi.model.PlacemarkCollection
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+
+/**
+ * Create and restore delta backups.
+ * A delta contains every placemark collection and annotation,
+ * but only placemarks of collections updated since the previous backup.
+ * Backups are chained by creation time, the first delta follows a [BackupManager] backup.
+ *
+ * @author Francesco Vasco
+ */
+class DeltaBackupManager(
+    private val placemarkCollectionDao: PlacemarkCollectionDao,
+    private val placemarkDao: PlacemarkDao
+) {
+
+    /**
+     * Create a delta backup.
+     * Data is read in a write transaction: an import running when the delta starts is committed before
+     * the creation time is taken, a later import stamps a later last update so the next delta contains it.
+     *
+     * @param since creation time of previous backup, full or delta
+     * @return delta creation time, use it as next since
+     */
+    @Throws(IOException::class)
+    fun create(outputStream: OutputStream, since: Long): Long {
+        Log.i(DeltaBackupManager::class.java.simpleName, "Create delta backup since $since")
+        var created = 0L
+        ZipOutputStream(outputStream).use { zipOutputStream ->
+            zipOutputStream.putNextEntry(ZipEntry(DELTA_ENTRY_NAME))
+            val jsonWriter = JsonWriter(zipOutputStream.writer())
+            placemarkCollectionDao.use {
+                placemarkDao.use {
+                    val database = placemarkDao.database!!
+                    // consistent read, placemark imports stamp last update inside their transaction
+                    database.beginTransactionNonExclusive()
+                    try {
+                        created = System.currentTimeMillis()
+                        jsonWriter.beginObject()
+                        jsonWriter.name("version").value(DELTA_VERSION)
+                        jsonWriter.name("since").value(since)
+                        jsonWriter.name("created").value(created)
+                        jsonWriter.name("collections").beginArray()
+                        for (placemarkCollection in placemarkCollectionDao.findAllPlacemarkCollection()) {
+                            writePlacemarkCollection(jsonWriter, placemarkCollection, since)
+                        }
+                        jsonWriter.endArray()
+                        jsonWriter.name("annotations").beginArray()
+                        for (placemarkAnnotation in placemarkDao.findAllPlacemarkAnnotation()) {
+                            writePlacemarkAnnotation(jsonWriter, placemarkAnnotation)
+                        }
+                        jsonWriter.endArray()
+                        jsonWriter.endObject()
+                    } finally {
+                        database.endTransaction()
+                    }
+                }
+            }
+            jsonWriter.flush()
+            zipOutputStream.closeEntry()
+        }
+        return created
+    }
+
+    /**
+     * Restore a full backup then replay deltas in creation order.
+     * A broken chain stops the replay, the database keeps the last applied backup.
+     *
+     * @return last applied creation time
+     */
+    @Throws(IOException::class)
+    fun restore(backupInputStream: InputStream, deltaInputStreams: Iterable<InputStream>): Long {
+        var lastCreated = BackupManager(placemarkCollectionDao, placemarkDao).restore(backupInputStream)
+        for (deltaInputStream in deltaInputStreams) {
+            lastCreated = restore(deltaInputStream, lastCreated)
+        }
+        return lastCreated
+    }
+
+    /**
+     * Apply a delta backup
+     *
+     * @param maxSince creation time of the previous backup, full or delta, so the delta does not skip changes
+     * @return delta creation time
+     */
+    @Throws(IOException::class)
+    fun restore(inputStream: InputStream, maxSince: Long): Long {
+        Log.i(DeltaBackupManager::class.java.simpleName, "Restore delta backup")
+        ZipInputStream(inputStream).use { zipInputStream ->
+            var zipEntry = zipInputStream.nextEntry
+            while (zipEntry != null && zipEntry.name != DELTA_ENTRY_NAME) {
+                zipEntry = zipInputStream.nextEntry
+            }
+            if (zipEntry == null) throw IOException("Delta backup not valid")
+            placemarkCollectionDao.use {
+                placemarkDao.use {
+                    val database = placemarkDao.database!!
+                    database.beginTransaction()
+                    try {
+                        val created = replay(JsonReader(ZipGuardInputStream(zipInputStream).reader()), maxSince)
+                        database.setTransactionSuccessful()
+                        return created
+                    } catch (e: IOException) {
+                        throw e
+                    } catch (e: Exception) {
+                        throw IOException("Delta backup not valid", e)
+                    } finally {
+                        database.endTransaction()
+                    }
+                }
+            }
+        }
+    }
+
+    private fun replay(jsonReader: JsonReader, maxSince: Long): Long {
+        var created = 0L
+        var hasSince = false
+        jsonReader.beginObject()
+        while (jsonReader.hasNext()) {
+            when (jsonReader.nextName()) {
+                "version" -> {
+                    val version = jsonReader.nextLong()
+                    if (version != DELTA_VERSION) throw IOException("Delta backup version $version not supported")
+                }
+                "since" -> {
+                    val since = jsonReader.nextLong()
+                    if (since > maxSince) throw IOException("Delta backup chain is broken")
+                    hasSince = true
+                }
+                "created" -> created = jsonReader.nextLong()
+                "collections" -> replayPlacemarkCollections(jsonReader)
+                "annotations" -> {
+                    placemarkDao.deleteAllPlacemarkAnnotation()
+                    jsonReader.beginArray()
+                    while (jsonReader.hasNext()) {
+                        placemarkDao.update(readPlacemarkAnnotation(jsonReader))
+                    }
+                    jsonReader.endArray()
+                }
+                else -> jsonReader.skipValue()
+            }
+        }
+        jsonReader.endObject()
+        // changes are rolled back
+        if (!hasSince) throw IOException("Delta backup chain is broken")
+        return created
+    }
+
+    private fun replayPlacemarkCollections(jsonReader: JsonReader) {
+        val deletedCollections =
+            placemarkCollectionDao.findAllPlacemarkCollection().associateByTo(HashMap()) { it.id }
+        jsonReader.beginArray()
+        while (jsonReader.hasNext()) {
+            val placemarkCollection = PlacemarkCollection()
+            var replaced = false
+            jsonReader.beginObject()
+            while (jsonReader.hasNext()) {
+                when (jsonReader.nextName()) {
+                    "id" -> placemarkCollection.id = jsonReader.nextLong()
+                    "name" -> placemarkCollection.name = jsonReader.nextString()
+                    "description" -> placemarkCollection.description = jsonReader.nextString()
+                    "category" -> placemarkCollection.category = jsonReader.nextString()
+                    "source" -> placemarkCollection.source = jsonReader.nextString()
+                    "fileFormatFilter" -> placemarkCollection.fileFormatFilter =
+                        FileFormatFilter.valueOf(jsonReader.nextString())
+                    "lastUpdate" -> placemarkCollection.lastUpdate = jsonReader.nextLong()
+                    "poiCount" -> placemarkCollection.poiCount = jsonReader.nextInt()
+                    "httpEtag" -> placemarkCollection.httpEtag = jsonReader.nextString()
+                    "httpLastModified" -> placemarkCollection.httpLastModified = jsonReader.nextString()
+                    "minLatitude" -> placemarkCollection.minLatitude = jsonReader.nextDouble().toFloat()
+                    "maxLatitude" -> placemarkCollection.maxLatitude = jsonReader.nextDouble().toFloat()
+                    "minLongitude" -> placemarkCollection.minLongitude = jsonReader.nextDouble().toFloat()
+                    "maxLongitude" -> placemarkCollection.maxLongitude = jsonReader.nextDouble().toFloat()
+                    "placemarks" -> {
+                        // placemarks follow collection data
+                        placemarkCollectionDao.replace(placemarkCollection)
+                        replaced = true
+                        placemarkDao.deleteByCollectionId(placemarkCollection.id)
+                        replayPlacemarks(jsonReader, placemarkCollection.id)
+                    }
+                    else -> jsonReader.skipValue()
+                }
+            }
+            jsonReader.endObject()
+            if (!replaced) placemarkCollectionDao.replace(placemarkCollection)
+            deletedCollections.remove(placemarkCollection.id)
+        }
+        jsonReader.endArray()
+
+        for (placemarkCollection in deletedCollections.values) {
+            placemarkDao.deleteByCollectionId(placemarkCollection.id)
+            placemarkCollectionDao.delete(placemarkCollection)
+        }
+    }
+
+    private fun replayPlacemarks(jsonReader: JsonReader, collectionId: Long) {
+        val batch = ArrayList<Placemark>(BATCH_SIZE)
+        jsonReader.beginArray()
+        while (jsonReader.hasNext()) {
+            val placemark = Placemark(collectionId = collectionId)
+            var latitude = Float.NaN
+            var longitude = Float.NaN
+            jsonReader.beginObject()
+            while (jsonReader.hasNext()) {
+                when (jsonReader.nextName()) {
+                    "latitude" -> latitude = jsonReader.nextDouble().toFloat()
+                    "longitude" -> longitude = jsonReader.nextDouble().toFloat()
+                    "name" -> placemark.name = jsonReader.nextString()
+                    "description" -> placemark.description = jsonReader.nextString()
+                    else -> jsonReader.skipValue()
+                }
+            }
+            jsonReader.endObject()
+            placemark.coordinates = Coordinates(latitude, longitude)
+            batch.add(placemark)
+            if (batch.size == BATCH_SIZE) {
+                placemarkDao.insert(batch)
+                batch.clear()
+            }
+        }
+        jsonReader.endArray()
+        placemarkDao.insert(batch)
+    }
+
+    private fun readPlacemarkAnnotation(jsonReader: JsonReader): PlacemarkAnnotation {
+        val placemarkAnnotation = PlacemarkAnnotation()
+        var latitude = Float.NaN
+        var longitude = Float.NaN
+        jsonReader.beginObject()
+        while (jsonReader.hasNext()) {
+            when (jsonReader.nextName()) {
+                "latitude" -> latitude = jsonReader.nextDouble().toFloat()
+                "longitude" -> longitude = jsonReader.nextDouble().toFloat()
+                "note" -> placemarkAnnotation.note = jsonReader.nextString()
+                "flagged" -> placemarkAnnotation.flagged = jsonReader.nextBoolean()
+                else -> jsonReader.skipValue()
+            }
+        }
+        jsonReader.endObject()
+        placemarkAnnotation.coordinates = Coordinates(latitude, longitude)
+        return placemarkAnnotation
+    }
+
+    private fun writePlacemarkCollection(
+        jsonWriter: JsonWriter,
+        placemarkCollection: PlacemarkCollection,
+        since: Long
+    ) {
+        jsonWriter.beginObject()
+        jsonWriter.name("id").value(placemarkCollection.id)
+        jsonWriter.name("name").value(placemarkCollection.name)
+        jsonWriter.name("description").value(placemarkCollection.description)
+        jsonWriter.name("category").value(placemarkCollection.category)
+        jsonWriter.name("source").value(placemarkCollection.source)
+        jsonWriter.name("fileFormatFilter").value(placemarkCollection.fileFormatFilter.name)
+        jsonWriter.name("lastUpdate").value(placemarkCollection.lastUpdate)
+        jsonWriter.name("poiCount").value(placemarkCollection.poiCount.toLong())
+        jsonWriter.name("httpEtag").value(placemarkCollection.httpEtag)
+        jsonWriter.name("httpLastModified").value(placemarkCollection.httpLastModified)
+        if (placemarkCollection.hasBounds) {
+            jsonWriter.name("minLatitude").value(placemarkCollection.minLatitude.toDouble())
+            jsonWriter.name("maxLatitude").value(placemarkCollection.maxLatitude.toDouble())
+            jsonWriter.name("minLongitude").value(placemarkCollection.minLongitude.toDouble())
+            jsonWriter.name("maxLongitude").value(placemarkCollection.maxLongitude.toDouble())
+        }
+        if (placemarkCollection.lastUpdate >= since) {
+            jsonWriter.name("placemarks").beginArray()
+            for (placemark in placemarkDao.findAllPlacemarkByCollectionId(placemarkCollection.id)) {
+                jsonWriter.beginObject()
+                jsonWriter.name("latitude").value(placemark.coordinates.latitude.toDouble())
+                jsonWriter.name("longitude").value(placemark.coordinates.longitude.toDouble())
+                jsonWriter.name("name").value(placemark.name)
+                jsonWriter.name("description").value(placemark.description)
+                jsonWriter.endObject()
+            }
+            jsonWriter.endArray()
+        }
+        jsonWriter.endObject()
+    }
+
+    private fun writePlacemarkAnnotation(jsonWriter: JsonWriter, placemarkAnnotation: PlacemarkAnnotation) {
+        jsonWriter.beginObject()
+        jsonWriter.name("latitude").value(placemarkAnnotation.coordinates.latitude.toDouble())
+        jsonWriter.name("longitude").value(placemarkAnnotation.coordinates.longitude.toDouble())
+        jsonWriter.name("note").value(placemarkAnnotation.note)
+        jsonWriter.name("flagged").value(placemarkAnnotation.flagged)
+        jsonWriter.endObject()
+    }
+
+    companion object {
+        private const val DELTA_ENTRY_NAME = "delta.json"
+        private const val DELTA_VERSION = 1L
+        private const val BATCH_SIZE = 256
+    }
+}
@@ -3,19 +3,18 @@ package io.github.fvasco.pinpoi.util
 import io.github.fvasco.pinpoi.model.PlacemarkSearchResult
 
 /**
- * Compare placemark using distance from a specific [Coordinates]
+ * Compare placemark using [PlacemarkSearchResult.distance] from search center
 
  * @author Francesco Vasco
  */
-class PlacemarkDistanceComparator(private val center: Coordinates) :
-    Comparator<PlacemarkSearchResult> {
+object PlacemarkDistanceComparator : Comparator<PlacemarkSearchResult> {
 
     override fun compare(plhs: PlacemarkSearchResult, prhs: PlacemarkSearchResult): Int {
-        val lhs = plhs.coordinates
-        val rhs = prhs.coordinates
-        var res = center.distanceTo(lhs).compareTo(center.distanceTo(rhs))
+        var res = plhs.distance.compareTo(prhs.distance)
         if (res == 0) {
             // equals <==> same coordinates
+            val lhs = plhs.coordinates
+            val rhs = prhs.coordinates
             res = lhs.latitude.compareTo(rhs.latitude)
             if (res == 0) res = lhs.longitude.compareTo(rhs.longitude)
         }
@@ -0,0 +1,213 @@
+package io.github.fvasco.pinpoi.util
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Point
+import android.graphics.PorterDuff
+import android.graphics.PorterDuffColorFilter
+import android.view.MotionEvent
+import androidx.core.content.ContextCompat
+import io.github.fvasco.pinpoi.model.PlacemarkSearchResult
+import org.osmdroid.util.GeoPoint
+import org.osmdroid.views.MapView
+import org.osmdroid.views.overlay.Overlay
+import java.util.TreeMap
+import kotlin.math.abs
+
+/**
+ * Draw many placemarks in a single pass.
+ * Placemarks are added and removed in groups, coordinates are kept in primitive arrays
+ * and icons are tinted bitmaps shared by all placemarks with the same icon and color.
+ * A tap on a placemark is located through a grid of the last drawn positions.
+ * All methods must be called in the UI thread.
+ *
+ * @param iconOf drawable resource of a placemark
+ * @param colorOf icon color of a placemark
+ * @param onTap placemark tap listener
+ *
+ * @author Francesco Vasco
+ */
+class PlacemarkOverlay(
+    private val context: Context,
+    private val iconOf: (PlacemarkSearchResult) -> Int,
+    private val colorOf: (PlacemarkSearchResult) -> Int,
+    private val onTap: (PlacemarkSearchResult) -> Unit
+) : Overlay() {
+
+    private class Group(
+        val placemarks: Array<PlacemarkSearchResult>,
+        val latitudes: DoubleArray,
+        val longitudes: DoubleArray,
+        val icons: Array<Bitmap>
+    )
+
+    private val groups = TreeMap<Long, Group>()
+    private val bitmaps = HashMap<Long, Bitmap>()
+    private val geoPoint = GeoPoint(0.0, 0.0)
+    private val point = Point()
+    private val gridCellSize = (GRID_CELL_DP * context.resources.displayMetrics.density).toInt()
+
+    // last drawn placemarks, in draw order
+    private var drawnCount = 0
+    private var drawnX = IntArray(256)
+    private var drawnY = IntArray(256)
+    private var drawnPlacemarks = arrayOfNulls<PlacemarkSearchResult>(256)
+
+    // hit grid of drawn placemarks, cell items are drawn placemark indexes
+    private var gridValid = false
+    private var gridColumns = 0
+    private var gridRows = 0
+    private var gridCellStart = IntArray(0)
+    private var gridItems = IntArray(0)
+
+    /**
+     * Set the placemarks of a group, groups are drawn in id order so the greatest id is on top.
+     * Placemarks are drawn in list order.
+     */
+    fun setPlacemarks(groupId: Long, placemarks: List<PlacemarkSearchResult>) {
+        val size = placemarks.size
+        val latitudes = DoubleArray(size)
+        val longitudes = DoubleArray(size)
+        val icons = Array(size) { i ->
+            val placemark = placemarks[i]
+            latitudes[i] = placemark.coordinates.latitude.toDouble()
+            longitudes[i] = placemark.coordinates.longitude.toDouble()
+            getBitmap(iconOf(placemark), colorOf(placemark))
+        }
+        groups[groupId] = Group(placemarks.toTypedArray(), latitudes, longitudes, icons)
+    }
+
+    fun removePlacemarks(groupId: Long) {
+        groups.remove(groupId)
+    }
+
+    override fun draw(canvas: Canvas, mapView: MapView, shadow: Boolean) {
+        if (shadow) return
+        val projection = mapView.projection
+        val width = canvas.width
+        val height = canvas.height
+        drawnCount = 0
+        gridValid = false
+        for (group in groups.values) {
+            val latitudes = group.latitudes
+            val longitudes = group.longitudes
+            val icons = group.icons
+            for (i in latitudes.indices) {
+                geoPoint.setCoords(latitudes[i], longitudes[i])
+                projection.toPixels(geoPoint, point)
+                val icon = icons[i]
+                val left = point.x - icon.width / 2
+                val top = point.y - icon.height / 2
+                if (left > width || top > height || left + icon.width < 0 || top + icon.height < 0) continue
+                canvas.drawBitmap(icon, left.toFloat(), top.toFloat(), null)
+                addDrawn(point.x, point.y, group.placemarks[i])
+            }
+        }
+    }
+
+    override fun onSingleTapConfirmed(e: MotionEvent, mapView: MapView): Boolean {
+        val placemark = findPlacemark(e.x.toInt(), e.y.toInt(), mapView.width, mapView.height)
+            ?: return false
+        onTap(placemark)
+        return true
+    }
+
+    override fun onDetach(mapView: MapView?) {
+        groups.clear()
+        bitmaps.clear()
+        drawnPlacemarks.fill(null)
+        drawnCount = 0
+        super.onDetach(mapView)
+    }
+
+    private fun getBitmap(iconId: Int, color: Int): Bitmap {
+        val key = (iconId.toLong() shl 32) or (color.toLong() and 0xFFFFFFFFL)
+        return bitmaps.getOrPut(key) {
+            val drawable = checkNotNull(ContextCompat.getDrawable(context, iconId)).mutate()
+            drawable.colorFilter = PorterDuffColorFilter(color, PorterDuff.Mode.SRC_ATOP)
+            val bitmap = Bitmap.createBitmap(
+                drawable.intrinsicWidth, drawable.intrinsicHeight, Bitmap.Config.ARGB_8888
+            )
+            drawable.setBounds(0, 0, bitmap.width, bitmap.height)
+            drawable.draw(Canvas(bitmap))
+            bitmap
+        }
+    }
+
+    private fun addDrawn(x: Int, y: Int, placemark: PlacemarkSearchResult) {
+        if (drawnCount == drawnX.size) {
+            val size = drawnCount * 2
+            drawnX = drawnX.copyOf(size)
+            drawnY = drawnY.copyOf(size)
+            drawnPlacemarks = drawnPlacemarks.copyOf(size)
+        }
+        drawnX[drawnCount] = x
+        drawnY[drawnCount] = y
+        drawnPlacemarks[drawnCount] = placemark
+        ++drawnCount
+    }
+
+    /**
+     * Find the top placemark under a screen position
+     */
+    private fun findPlacemark(x: Int, y: Int, width: Int, height: Int): PlacemarkSearchResult? {
+        if (drawnCount == 0) return null
+        if (!gridValid) buildGrid(width, height)
+        val column = (x / gridCellSize).coerceIn(0, gridColumns - 1)
+        val row = (y / gridCellSize).coerceIn(0, gridRows - 1)
+        val hitRadius = gridCellSize / 2
+        var found = -1
+        for (r in (row - 1).coerceAtLeast(0)..(row + 1).coerceAtMost(gridRows - 1)) {
+            for (c in (column - 1).coerceAtLeast(0)..(column + 1).coerceAtMost(gridColumns - 1)) {
+                val cell = r * gridColumns + c
+                for (i in gridCellStart[cell] until gridCellStart[cell + 1]) {
+                    val index = gridItems[i]
+                    // the last drawn is on top
+                    if (index > found
+                        && abs(drawnX[index] - x) <= hitRadius
+                        && abs(drawnY[index] - y) <= hitRadius
+                    ) found = index
+                }
+            }
+        }
+        return if (found >= 0) drawnPlacemarks[found] else null
+    }
+
+    /**
+     * Sort drawn placemarks in grid cells
+     */
+    private fun buildGrid(width: Int, height: Int) {
+        gridColumns = width / gridCellSize + 1
+        gridRows = height / gridCellSize + 1
+        val cellCount = gridColumns * gridRows
+        if (gridCellStart.size < cellCount + 1) gridCellStart = IntArray(cellCount + 1)
+        else gridCellStart.fill(0, 0, cellCount + 1)
+        if (gridItems.size < drawnCount) gridItems = IntArray(drawnX.size)
+
+        // count items in cells, then prefix sum
+        for (i in 0 until drawnCount) ++gridCellStart[cellOf(i) + 1]
+        for (cell in 1..cellCount) gridCellStart[cell] += gridCellStart[cell - 1]
+        // fill cells, cell end is used as cursor and then restored
+        for (i in 0 until drawnCount) {
+            val cell = cellOf(i)
+            gridItems[gridCellStart[cell]++] = i
+        }
+        for (cell in cellCount downTo 1) gridCellStart[cell] = gridCellStart[cell - 1]
+        gridCellStart[0] = 0
+        gridValid = true
+    }
+
+    private fun cellOf(index: Int): Int {
+        val column = (drawnX[index] / gridCellSize).coerceIn(0, gridColumns - 1)
+        val row = (drawnY[index] / gridCellSize).coerceIn(0, gridRows - 1)
+        return row * gridColumns + column
+    }
+
+    private companion object {
+        /**
+         * Size of hit grid cell and hit area, in dp
+         */
+        private const val GRID_CELL_DP = 32
+    }
+}
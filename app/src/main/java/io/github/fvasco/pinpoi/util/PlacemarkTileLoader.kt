@@ -0,0 +1,259 @@
+package io.github.fvasco.pinpoi.util
+
+import android.content.Context
+import android.util.Log
+import android.util.LruCache
+import io.github.fvasco.pinpoi.dao.PlacemarkDao
+import io.github.fvasco.pinpoi.dao.use
+import io.github.fvasco.pinpoi.model.PlacemarkCluster
+import io.github.fvasco.pinpoi.model.PlacemarkSearchResult
+import org.osmdroid.events.MapListener
+import org.osmdroid.events.ScrollEvent
+import org.osmdroid.events.ZoomEvent
+import org.osmdroid.util.BoundingBox
+import org.osmdroid.views.MapView
+import java.util.concurrent.Executors
+import kotlin.math.ceil
+import kotlin.math.floor
+
+/**
+ * Load placemarks of the visible map area.
+ * The world is split in a grid of square tiles, the tile size depends on the zoom level.
+ * Scroll and zoom events are debounced, then only tiles entering the view are loaded
+ * and loaded tiles are kept in a memory cache.
+ * Placemarks are grouped in clusters by a grid in each tile, except at the max zoom level,
+ * so clusters split on zoom in.
+ * Nothing is loaded below a min zoom level, where each tile query would scan a large part of the database.
+ * All methods and listener calls run in the UI thread.
+ *
+ * @author Francesco Vasco
+ */
+class PlacemarkTileLoader(
+    context: Context,
+    private val mapView: MapView,
+    private val collectionIds: Collection<Long>,
+    private val nameFilter: String,
+    private val onlyFavourite: Boolean,
+    private val excludedIds: Collection<Long>,
+    private val listener: Listener
+) : MapListener {
+
+    interface Listener {
+        /**
+         * Tile become visible
+         */
+        fun onTileShow(tileId: Long, tile: Tile)
+
+        /**
+         * Tile is no more visible
+         */
+        fun onTileHide(tileId: Long, tile: Tile)
+    }
+
+    /**
+     * Content of a tile
+     *
+     * @param placemarks placemarks not in clusters
+     * @param clusters clusters of two or more placemarks
+     */
+    class Tile(val placemarks: List<PlacemarkSearchResult>, val clusters: List<PlacemarkCluster>)
+
+    private val applicationContext = context.applicationContext
+    private val executor = Executors.newSingleThreadExecutor()
+    private val cache = object : LruCache<Long, Tile>(CACHE_SIZE) {
+        override fun sizeOf(key: Long, value: Tile) = value.placemarks.size + value.clusters.size + 1
+    }
+    private val shownTiles = HashMap<Long, Tile>()
+    private val loadingTiles = HashSet<Long>()
+    private val refreshRunnable = Runnable { refresh() }
+    private var closed = false
+
+    /**
+     * Tiles in view, read by loader thread
+     */
+    @Volatile
+    private var visibleTiles: Set<Long> = emptySet()
+
+    init {
+        mapView.addMapListener(this)
+    }
+
+    override fun onScroll(event: ScrollEvent?): Boolean {
+        scheduleRefresh()
+        return false
+    }
+
+    override fun onZoom(event: ZoomEvent?): Boolean {
+        scheduleRefresh()
+        return false
+    }
+
+    fun scheduleRefresh() {
+        mapView.removeCallbacks(refreshRunnable)
+        mapView.postDelayed(refreshRunnable, DEBOUNCE_MILLIS)
+    }
+
+    /**
+     * Show visible tiles and hide the others
+     */
+    fun refresh() {
+        if (closed) return
+        val level = getTileLevel(mapView.zoomLevelDouble)
+        // a zoomed out map covers too many placemarks, only shown tiles are hidden
+        val tiles = if (level < MIN_TILE_LEVEL) emptySet() else getTiles(mapView.boundingBox, level)
+        visibleTiles = tiles
+
+        val iterator = shownTiles.entries.iterator()
+        while (iterator.hasNext()) {
+            val (tileId, tile) = iterator.next()
+            if (tileId !in tiles) {
+                iterator.remove()
+                listener.onTileHide(tileId, tile)
+            }
+        }
+        for (tileId in tiles) {
+            if (tileId in shownTiles || tileId in loadingTiles) continue
+            val tile = cache.get(tileId)
+            if (tile == null) load(tileId) else show(tileId, tile)
+        }
+    }
+
+    /**
+     * Stop loading, shown tiles are not hidden
+     */
+    fun close() {
+        closed = true
+        mapView.removeCallbacks(refreshRunnable)
+        mapView.removeMapListener(this)
+        executor.shutdownNow()
+    }
+
+    private fun show(tileId: Long, tile: Tile) {
+        shownTiles[tileId] = tile
+        listener.onTileShow(tileId, tile)
+    }
+
+    private fun load(tileId: Long) {
+        loadingTiles.add(tileId)
+        executor.execute {
+            // skip tiles gone out of view while waiting
+            val visible = tileId in visibleTiles
+            val tile =
+                if (visible) {
+                    try {
+                        query(tileId)
+                    } catch (e: Exception) {
+                        Log.e(PlacemarkTileLoader::class.java.simpleName, "Error loading tile $tileId", e)
+                        null
+                    }
+                } else null
+            mapView.post {
+                loadingTiles.remove(tileId)
+                if (closed) return@post
+                if (tile != null) {
+                    cache.put(tileId, tile)
+                    if (tileId in visibleTiles && tileId !in shownTiles) show(tileId, tile)
+                } else if (!visible && tileId in visibleTiles) {
+                    load(tileId)
+                }
+            }
+        }
+    }
+
+    private fun query(tileId: Long): Tile {
+        val level = (tileId ushr LEVEL_SHIFT).toInt()
+        val x = ((tileId ushr X_SHIFT) and INDEX_MASK).toInt()
+        val y = (tileId and INDEX_MASK).toInt()
+        val tileSize = getTileSize(level)
+        val latitudeMin = -90.0 + y * tileSize
+        val longitudeMin = -180.0 + x * tileSize
+        return PlacemarkDao(applicationContext).use { placemarkDao ->
+            if (level == MAX_TILE_LEVEL) {
+                Tile(
+                    placemarkDao.findAllPlacemarkInBox(
+                        latitudeMin, latitudeMin + tileSize,
+                        longitudeMin, longitudeMin + tileSize,
+                        collectionIds, nameFilter, onlyFavourite, excludedIds, MAX_TILE_RESULT
+                    ),
+                    emptyList()
+                )
+            } else {
+                val clusters = placemarkDao.findAllPlacemarkClusterInBox(
+                    latitudeMin, latitudeMin + tileSize,
+                    longitudeMin, longitudeMin + tileSize,
+                    CLUSTER_GRID_SIZE, collectionIds, nameFilter, onlyFavourite, excludedIds
+                )
+                Tile(
+                    clusters.mapNotNull(PlacemarkCluster::placemark),
+                    clusters.filter { it.placemark == null }
+                )
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * Wait the end of a scroll or zoom
+         */
+        private const val DEBOUNCE_MILLIS = 300L
+
+        /**
+         * Max placemarks loaded for each tile, at max tile level
+         */
+        private const val MAX_TILE_RESULT = 500
+
+        /**
+         * Tile side is split in this count of cluster cells
+         */
+        private const val CLUSTER_GRID_SIZE = 8
+
+        /**
+         * Max placemarks and clusters in cache
+         */
+        private const val CACHE_SIZE = 20_000
+
+        /**
+         * Tiles are loaded from this level, a tile side is about 5.6 degrees
+         */
+        private const val MIN_TILE_LEVEL = 6
+        private const val MAX_TILE_LEVEL = 16
+        private const val LEVEL_SHIFT = 40
+        private const val X_SHIFT = 20
+        private const val INDEX_MASK = (1L shl X_SHIFT) - 1
+
+        /**
+         * A tile is about two screen tiles of map at the same zoom
+         */
+        private fun getTileLevel(zoomLevel: Double) =
+            (floor(zoomLevel).toInt() - 1).coerceIn(0, MAX_TILE_LEVEL)
+
+        private fun getTileSize(level: Int) = 360.0 / (1 shl level)
+
+        /**
+         * Tiles intersecting the bounding box
+         */
+        private fun getTiles(boundingBox: BoundingBox, level: Int): Set<Long> {
+            val tileSize = getTileSize(level)
+            val columns = 1 shl level
+            val rows = ceil(180.0 / tileSize).toInt()
+            val yMin = floor((boundingBox.latSouth + 90.0) / tileSize).toInt().coerceIn(0, rows - 1)
+            val yMax = floor((boundingBox.latNorth + 90.0) / tileSize).toInt().coerceIn(0, rows - 1)
+            val west = boundingBox.lonWest
+            // box crosses meridian 180
+            val east = if (boundingBox.lonEast < west) boundingBox.lonEast + 360.0 else boundingBox.lonEast
+            val xMin = floor((west + 180.0) / tileSize).toInt()
+            val xMax = floor((east + 180.0) / tileSize).toInt().coerceAtMost(xMin + columns - 1)
+            val tiles = HashSet<Long>()
+            for (y in yMin..yMax) {
+                for (x in xMin..xMax) {
+                    tiles.add(
+                        (level.toLong() shl LEVEL_SHIFT) or
+                                (Math.floorMod(x, columns).toLong() shl X_SHIFT) or
+                                y.toLong()
+                    )
+                }
+            }
+            return tiles
+        }
+    }
+}